@@ -0,0 +1,41 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Compile-only stand-in. getDefaultAdapter() returns null, as on a device
+ * without Bluetooth.
+ */
+public final class BluetoothAdapter {
+    public static final String ACTION_STATE_CHANGED = "android.bluetooth.adapter.action.STATE_CHANGED";
+
+    private BluetoothAdapter() {
+    }
+
+    public static BluetoothAdapter getDefaultAdapter() {
+        return null;
+    }
+
+    public Set<BluetoothDevice> getBondedDevices() {
+        return Collections.emptySet();
+    }
+
+    public BluetoothDevice getRemoteDevice(String address) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean cancelDiscovery() {
+        return false;
+    }
+
+    public BluetoothServerSocket listenUsingRfcommWithServiceRecord(String name, UUID uuid) throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+
+    public BluetoothServerSocket listenUsingInsecureRfcommWithServiceRecord(String name, UUID uuid) throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+}
@@ -0,0 +1,36 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Compile-only stand-in. There is no Bluetooth on a plain JVM, so the
+ * benchmarks only run over MemoryTransport and TcpTransport.
+ */
+public final class BluetoothDevice {
+    public static final String ACTION_BOND_STATE_CHANGED = "android.bluetooth.device.action.BOND_STATE_CHANGED";
+    public static final String EXTRA_DEVICE = "android.bluetooth.device.extra.DEVICE";
+    public static final String EXTRA_BOND_STATE = "android.bluetooth.device.extra.BOND_STATE";
+    public static final int BOND_NONE = 10;
+    public static final int BOND_BONDING = 11;
+    public static final int BOND_BONDED = 12;
+
+    private BluetoothDevice() {
+    }
+
+    public String getAddress() {
+        throw new UnsupportedOperationException();
+    }
+
+    public String getName() {
+        throw new UnsupportedOperationException();
+    }
+
+    public BluetoothSocket createRfcommSocketToServiceRecord(UUID uuid) throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+
+    public BluetoothSocket createInsecureRfcommSocketToServiceRecord(UUID uuid) throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+}
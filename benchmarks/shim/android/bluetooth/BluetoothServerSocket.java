@@ -0,0 +1,19 @@
+package android.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Compile-only stand-in, never instantiated.
+ */
+public final class BluetoothServerSocket implements Closeable {
+    private BluetoothServerSocket() {
+    }
+
+    public BluetoothSocket accept() throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+
+    public void close() throws IOException {
+    }
+}
@@ -0,0 +1,33 @@
+package android.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compile-only stand-in, never instantiated.
+ */
+public final class BluetoothSocket implements Closeable {
+    private BluetoothSocket() {
+    }
+
+    public void connect() throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+
+    public InputStream getInputStream() throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+
+    public BluetoothDevice getRemoteDevice() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void close() throws IOException {
+    }
+}
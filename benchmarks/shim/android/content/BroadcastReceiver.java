@@ -0,0 +1,8 @@
+package android.content;
+
+/**
+ * Compile-only stand-in.
+ */
+public abstract class BroadcastReceiver {
+    public abstract void onReceive(Context context, Intent intent);
+}
@@ -0,0 +1,12 @@
+package android.content;
+
+/**
+ * Compile-only stand-in.
+ */
+public abstract class Context {
+    public abstract Context getApplicationContext();
+
+    public abstract Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter);
+
+    public abstract void unregisterReceiver(BroadcastReceiver receiver);
+}
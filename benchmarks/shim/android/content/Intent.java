@@ -0,0 +1,21 @@
+package android.content;
+
+/**
+ * Compile-only stand-in, never instantiated.
+ */
+public class Intent {
+    private Intent() {
+    }
+
+    public String getAction() {
+        throw new UnsupportedOperationException();
+    }
+
+    public <T> T getParcelableExtra(String name) {
+        throw new UnsupportedOperationException();
+    }
+
+    public int getIntExtra(String name, int defaultValue) {
+        throw new UnsupportedOperationException();
+    }
+}
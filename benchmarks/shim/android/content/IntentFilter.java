@@ -0,0 +1,12 @@
+package android.content;
+
+/**
+ * Compile-only stand-in.
+ */
+public class IntentFilter {
+    public IntentFilter(String action) {
+    }
+
+    public void addAction(String action) {
+    }
+}
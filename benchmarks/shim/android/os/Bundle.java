@@ -0,0 +1,27 @@
+package android.os;
+
+import java.util.HashMap;
+
+/**
+ * Stand-in for the values the service puts in messages.
+ */
+public final class Bundle {
+    private final HashMap<String, Object> values = new HashMap<String, Object>();
+
+    public void putString(String key, String value) {
+        values.put(key, value);
+    }
+
+    public String getString(String key) {
+        return (String)values.get(key);
+    }
+
+    public void putLong(String key, long value) {
+        values.put(key, value);
+    }
+
+    public long getLong(String key) {
+        Long value = (Long)values.get(key);
+        return value == null ? 0 : value;
+    }
+}
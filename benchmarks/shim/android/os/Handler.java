@@ -0,0 +1,23 @@
+package android.os;
+
+/**
+ * Stand-in with no Looper. Messages sent to it are dropped, so clients
+ * on the JVM return null from getHandler().
+ */
+public class Handler {
+    public Message obtainMessage(int what) {
+        return obtainMessage(what, 0, 0);
+    }
+
+    public Message obtainMessage(int what, int arg1, int arg2) {
+        Message msg = new Message();
+        msg.what = what;
+        msg.arg1 = arg1;
+        msg.arg2 = arg2;
+        return msg;
+    }
+
+    public boolean sendMessage(Message msg) {
+        return false;
+    }
+}
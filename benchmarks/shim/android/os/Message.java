@@ -0,0 +1,22 @@
+package android.os;
+
+/**
+ * Stand-in for the fields the service sets.
+ */
+public final class Message {
+    public int what;
+    public int arg1;
+    public int arg2;
+    private Bundle data;
+
+    public void setData(Bundle data) {
+        this.data = data;
+    }
+
+    public Bundle getData() {
+        return data;
+    }
+
+    public void sendToTarget() {
+    }
+}
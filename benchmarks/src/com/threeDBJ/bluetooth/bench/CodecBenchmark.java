@@ -0,0 +1,98 @@
+package com.threeDBJ.bluetooth.bench;
+
+import com.threeDBJ.bluetooth.BluetoothMessage;
+import com.threeDBJ.bluetooth.DebugLog;
+import com.threeDBJ.bluetooth.Frame;
+import com.threeDBJ.bluetooth.FrameCodec;
+import com.threeDBJ.bluetooth.FrameDecoder;
+import com.threeDBJ.bluetooth.FrameEncoder;
+import com.threeDBJ.bluetooth.FrameReceiver;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding one message, as a legacy frame and as a version 1
+ * frame. Sizes stay within the legacy payload limit so the two compare.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({"16", "120"})
+    public int size;
+
+    private BluetoothMessage msg;
+    private final NullOutputStream out = new NullOutputStream();
+    private final FrameEncoder legacyEncoder = new FrameEncoder(FrameCodec.VERSION_LEGACY);
+    private final FrameEncoder encoder = new FrameEncoder(FrameCodec.VERSION_1);
+    private final FrameDecoder decoder = new FrameDecoder();
+    private byte[] legacyFrame, frame;
+    private int received;
+
+    private final FrameReceiver receiver = new FrameReceiver() {
+            public void receivedFrame(Frame frame) {
+                received += frame.length;
+            }
+        };
+
+    @Setup
+    public void setup() throws IOException {
+        DebugLog.setDebugLogging(false);
+        byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        msg = new BluetoothMessage(42, payload);
+        int len = legacyEncoder.encode(0, msg.cmd, payload, 0, size);
+        legacyFrame = Arrays.copyOf(legacyEncoder.getBuffer(), len);
+        len = encoder.encode(0, msg.cmd, payload, 0, size);
+        frame = Arrays.copyOf(encoder.getBuffer(), len);
+    }
+
+    /* The original path, which allocates a frame per message */
+    @Benchmark
+    public long messageWrite() throws IOException {
+        msg.write(out);
+        return out.count;
+    }
+
+    @Benchmark
+    public long encoderWriteLegacy() throws IOException {
+        legacyEncoder.write(msg, out);
+        return out.count;
+    }
+
+    @Benchmark
+    public long encoderWriteV1() throws IOException {
+        encoder.write(msg, out);
+        return out.count;
+    }
+
+    @Benchmark
+    public int decodeLegacy() throws IOException {
+        decoder.feed(legacyFrame, 0, legacyFrame.length, receiver);
+        return received;
+    }
+
+    @Benchmark
+    public int decodeV1() throws IOException {
+        decoder.feed(frame, 0, frame.length, receiver);
+        return received;
+    }
+}
@@ -0,0 +1,73 @@
+package com.threeDBJ.bluetooth.bench;
+
+import com.threeDBJ.bluetooth.Frame;
+import com.threeDBJ.bluetooth.FrameCodec;
+import com.threeDBJ.bluetooth.FrameDecoder;
+import com.threeDBJ.bluetooth.FrameEncoder;
+import com.threeDBJ.bluetooth.FrameReceiver;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Version 1 frames too large for the legacy format. Decoding is fed in
+ * RFCOMM packet sized reads, so frames span many reads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LargeFrameBenchmark {
+    private static final int READ_SIZE = 990;
+
+    @Param({"4096", "65536"})
+    public int size;
+
+    private final FrameEncoder encoder = new FrameEncoder(FrameCodec.VERSION_1);
+    private final FrameDecoder decoder = new FrameDecoder();
+    private byte[] payload, frame;
+    private int received;
+
+    private final FrameReceiver receiver = new FrameReceiver() {
+            public void receivedFrame(Frame frame) {
+                received += frame.length;
+            }
+        };
+
+    @Setup
+    public void setup() throws IOException {
+        payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        int len = encoder.encode(0, 42, payload, 0, size);
+        frame = Arrays.copyOf(encoder.getBuffer(), len);
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        return encoder.encode(0, 42, payload, 0, size);
+    }
+
+    @Benchmark
+    public int decode() throws IOException {
+        for(int i = 0; i < frame.length; i += READ_SIZE) {
+            decoder.feed(frame, i, Math.min(READ_SIZE, frame.length - i), receiver);
+        }
+        return received;
+    }
+}
@@ -0,0 +1,73 @@
+package com.threeDBJ.bluetooth.bench;
+
+import com.threeDBJ.bluetooth.DebugLog;
+import com.threeDBJ.bluetooth.LogRingBuffer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DebugLog calls as they appear on the connection's hot paths, with
+ * logging off, to logcat, and to a ring buffer only. Turned off, a
+ * concatenated message is still built, while a formatted one is not.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LogBenchmark {
+    private static final String TAG = "BTAndroid";
+
+    @Param({"off", "logcat", "ring"})
+    public String sink;
+
+    private int seq;
+    private final Exception error = new Exception("Broken pipe");
+
+    @Setup
+    public void setup() {
+        DebugLog.setDebugLogging(!"off".equals(sink));
+        DebugLog.setLogcat(!"ring".equals(sink));
+        DebugLog.setRingBuffer("ring".equals(sink) ? new LogRingBuffer() : null);
+    }
+
+    @Benchmark
+    public int constant() {
+        return DebugLog.d(TAG, "BEGIN connectedThread");
+    }
+
+    @Benchmark
+    public int concatenated() {
+        seq += 1;
+        return DebugLog.e(TAG, "Frame "+seq+" out of order, sending NACK");
+    }
+
+    @Benchmark
+    public int formatted() {
+        seq += 1;
+        return DebugLog.e(TAG, "Frame {} out of order, sending NACK", seq);
+    }
+
+    @Benchmark
+    public int withMessage() {
+        return DebugLog.e(TAG, "Exception sending BluetoothMessage "+error.getMessage());
+    }
+
+    @Benchmark
+    public int withMessageFormatted() {
+        return DebugLog.e(TAG, "Exception sending BluetoothMessage {}", error.getMessage());
+    }
+}
@@ -0,0 +1,513 @@
+package com.threeDBJ.bluetooth.bench;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+
+import com.threeDBJ.bluetooth.BluetoothClient;
+import com.threeDBJ.bluetooth.BluetoothExecutors;
+import com.threeDBJ.bluetooth.BluetoothMessage;
+import com.threeDBJ.bluetooth.BluetoothService;
+import com.threeDBJ.bluetooth.BluetoothStats;
+import com.threeDBJ.bluetooth.BulkReceiver;
+import com.threeDBJ.bluetooth.DebugLog;
+import com.threeDBJ.bluetooth.Frame;
+import com.threeDBJ.bluetooth.FrameCodec;
+import com.threeDBJ.bluetooth.FrameReceiver;
+import com.threeDBJ.bluetooth.MemoryTransport;
+import com.threeDBJ.bluetooth.TcpTransport;
+import com.threeDBJ.bluetooth.Transport;
+import com.threeDBJ.bluetooth.WireTraceRecorder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End to end measurements of two BluetoothServices connected through a
+ * MemoryTransport or TcpTransport on this machine:
+ *
+ *   throughput   send(), write(byte[]) and write(InputStream) for each
+ *                payload size and chunk size, from the first write until
+ *                the receiving client has seen every byte
+ *   round trip   a small message echoed back by the peer's client
+ *   connect      from connect() until both services are connected
+ *   teardown     from stop() until the peer has noticed
+ *
+ * Results are printed and written as JSON, so runs can be compared.
+ *
+ *     ant loopback -Dloopback.args="--transport tcp --seconds 5"
+ *
+ * Options, with their defaults:
+ *
+ *     --transport memory       memory or tcp
+ *     --port 47100             first of the TCP ports to listen on
+ *     --sizes 16,256,4096,65536
+ *     --chunks 1024,16384      BluetoothService.setChunkSize() values
+ *     --seconds 2              length of each throughput run
+ *     --round-trips 5000       after 500 round trips of warm up
+ *     --connects 50
+ *     --queued                 use queued writes
+ *     --trace DIR              record a wire trace of every connection
+ *                              into DIR, to measure what it costs
+ *     --out build/loopback.json
+ */
+public class LoopbackHarness {
+    private static final int CMD_DATA = 10;
+    private static final int CMD_PING = 11;
+    private static final int CMD_PONG = 12;
+    private static final int ROUND_TRIP_SIZE = 16;
+    private static final int WARMUP_ROUND_TRIPS = 500;
+    /* Writes a queued sender may have waiting, so it can't run far ahead */
+    private static final int MAX_QUEUED = 64;
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    static class Options {
+        String transport = "memory";
+        int port = 47100;
+        int[] sizes = {16, 256, 4096, 65536};
+        int[] chunks = {1024, 16384};
+        double seconds = 2;
+        int roundTrips = 5000;
+        int connects = 50;
+        boolean queued;
+        String trace;
+        String out = "build/loopback.json";
+
+        static Options parse(String[] args) {
+            Options o = new Options();
+            for(int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if("--queued".equals(arg)) {
+                    o.queued = true;
+                    continue;
+                }
+                if(i + 1 == args.length) throw new IllegalArgumentException("No value for "+arg);
+                String value = args[++i];
+                if("--transport".equals(arg)) {
+                    if(!"memory".equals(value) && !"tcp".equals(value)) {
+                        throw new IllegalArgumentException("Unknown transport "+value);
+                    }
+                    o.transport = value;
+                } else if("--port".equals(arg)) {
+                    o.port = Integer.parseInt(value);
+                } else if("--sizes".equals(arg)) {
+                    o.sizes = parseInts(value);
+                } else if("--chunks".equals(arg)) {
+                    o.chunks = parseInts(value);
+                } else if("--seconds".equals(arg)) {
+                    o.seconds = Double.parseDouble(value);
+                } else if("--round-trips".equals(arg)) {
+                    o.roundTrips = Integer.parseInt(value);
+                } else if("--connects".equals(arg)) {
+                    o.connects = Integer.parseInt(value);
+                } else if("--trace".equals(arg)) {
+                    o.trace = value;
+                } else if("--out".equals(arg)) {
+                    o.out = value;
+                } else {
+                    throw new IllegalArgumentException("Unknown option "+arg);
+                }
+            }
+            return o;
+        }
+
+        private static int[] parseInts(String value) {
+            String[] parts = value.split(",");
+            int[] ints = new int[parts.length];
+            for(int i = 0; i < parts.length; i++) {
+                ints[i] = Integer.parseInt(parts[i].trim());
+            }
+            return ints;
+        }
+    }
+
+    /**
+     * A client that ignores everything.
+     */
+    static class Client implements BluetoothClient {
+        public void receivedData(int val, InputStream inputStream) throws IOException {
+        }
+
+        public void startService() {
+        }
+
+        public void stopService() {
+        }
+
+        public void connectDevice(BluetoothDevice device, boolean secure) {
+        }
+
+        public boolean isConnected() {
+            return false;
+        }
+
+        public Handler getHandler() {
+            return null;
+        }
+
+        public Handler getProgressHandler() {
+            return null;
+        }
+
+        public boolean send(BluetoothMessage msg) {
+            return false;
+        }
+
+        public boolean write(String msg) {
+            return false;
+        }
+
+        public boolean write(byte[] bytes) {
+            return false;
+        }
+    }
+
+    /* Counts the payload bytes of received frames */
+    static class FrameCounter extends Client implements FrameReceiver {
+        final AtomicLong bytes = new AtomicLong();
+
+        public void receivedFrame(Frame frame) {
+            bytes.addAndGet(frame.length);
+        }
+    }
+
+    /* Counts raw received bytes */
+    static class ByteCounter extends Client implements BulkReceiver {
+        final AtomicLong bytes = new AtomicLong();
+
+        public void receivedData(String address, byte[] buffer, int offset, int length) {
+            bytes.addAndGet(length);
+        }
+    }
+
+    static class Echo extends Client implements FrameReceiver {
+        volatile BluetoothService service;
+
+        public void receivedFrame(Frame frame) {
+            if(frame.cmd == CMD_PING) {
+                service.send(frame.address, new BluetoothMessage(CMD_PONG, frame.copyPayload()));
+            }
+        }
+    }
+
+    static class Pinger extends Client implements FrameReceiver {
+        final LinkedBlockingQueue<Long> pongs = new LinkedBlockingQueue<Long>();
+
+        public void receivedFrame(Frame frame) {
+            if(frame.cmd == CMD_PONG) pongs.offer(System.nanoTime());
+        }
+    }
+
+    /**
+     * A listening service and a service connected to it.
+     */
+    class Pair {
+        final BluetoothService server, client;
+        final String address;
+
+        Pair(BluetoothClient serverClient, BluetoothClient clientClient, int chunkSize) throws IOException {
+            Transport serverTransport, clientTransport;
+            if("tcp".equals(options.transport)) {
+                // A fresh port each time, as the last server may not have
+                // let go of its port yet
+                int port = options.port + 2 * (pairs++ % 500);
+                TcpTransport tcp = new TcpTransport(port);
+                serverTransport = tcp;
+                clientTransport = new TcpTransport(port + 1000);
+                address = tcp.getAddress();
+            } else {
+                MemoryTransport memory = new MemoryTransport("server");
+                serverTransport = memory;
+                clientTransport = memory.join("client");
+                address = memory.getAddress();
+            }
+            server = newService(serverClient, serverTransport, chunkSize);
+            client = newService(clientClient, clientTransport, chunkSize);
+            server.start();
+            await(server, BluetoothService.STATE_LISTEN);
+        }
+
+        /**
+         * @return How long the connect took, in nanoseconds
+         */
+        long connect() throws IOException {
+            long start = System.nanoTime();
+            client.connect(address, true);
+            await(client, BluetoothService.STATE_CONNECTED);
+            await(server, BluetoothService.STATE_CONNECTED);
+            return System.nanoTime() - start;
+        }
+
+        /**
+         * @return How long until the server noticed the client stop, in
+         *         nanoseconds
+         */
+        long disconnect() throws IOException {
+            long start = System.nanoTime();
+            client.stop();
+            awaitNot(server, BluetoothService.STATE_CONNECTED);
+            return System.nanoTime() - start;
+        }
+
+        void close() {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    private final Options options;
+    private final ExecutorService executor = BluetoothExecutors.newWorkerPool("Loopback", 64);
+    private final ScheduledExecutorService scheduler = BluetoothExecutors.newTimer("LoopbackTimer");
+    private final StringBuilder json = new StringBuilder();
+    private int pairs;
+    private WireTraceRecorder trace;
+
+    LoopbackHarness(Options options) {
+        this.options = options;
+    }
+
+    private BluetoothService newService(BluetoothClient client, Transport transport, int chunkSize) {
+        BluetoothService service = new BluetoothService(client, transport);
+        service.setExecutor(executor);
+        service.setScheduler(scheduler);
+        service.setFrameVersion(FrameCodec.VERSION_1);
+        service.setQueuedWrites(options.queued);
+        service.setChunkSize(chunkSize);
+        service.setWireTrace(trace);
+        return service;
+    }
+
+    static void await(BluetoothService service, int state) throws IOException {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while(service.getState() != state) {
+            if(System.nanoTime() > deadline) throw new IOException("Timed out waiting for state "+state);
+            LockSupport.parkNanos(20000);
+        }
+    }
+
+    static void awaitNot(BluetoothService service, int state) throws IOException {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while(service.getState() == state) {
+            if(System.nanoTime() > deadline) throw new IOException("Timed out leaving state "+state);
+            LockSupport.parkNanos(20000);
+        }
+    }
+
+    /**
+     * Write for the configured time, then wait for the receiver to catch
+     * up. The message, array or stream is reused for every write.
+     */
+    void throughput(String mode, int size, int chunkSize) throws IOException {
+        AtomicLong received;
+        BluetoothClient sink;
+        if("send".equals(mode)) {
+            FrameCounter counter = new FrameCounter();
+            received = counter.bytes;
+            sink = counter;
+        } else {
+            ByteCounter counter = new ByteCounter();
+            received = counter.bytes;
+            sink = counter;
+        }
+        Pair pair = new Pair(sink, new Client(), chunkSize);
+        try {
+            pair.connect();
+            BluetoothService sender = pair.client;
+            BluetoothStats stats = sender.getStats(pair.address);
+            byte[] payload = new byte[size];
+            new Random(size).nextBytes(payload);
+            BluetoothMessage msg = new BluetoothMessage(CMD_DATA, payload);
+
+            long duration = (long)(options.seconds * 1e9);
+            long start = System.nanoTime();
+            long sent = 0, operations = 0;
+            do {
+                while(stats.getQueueDepth() > MAX_QUEUED) {
+                    LockSupport.parkNanos(10000);
+                }
+                for(int i = 0; i < 16; i++) {
+                    if("send".equals(mode)) {
+                        sender.send(msg);
+                    } else if("write".equals(mode)) {
+                        sender.write(payload);
+                    } else {
+                        sender.write(new ByteArrayInputStream(payload));
+                    }
+                    sent += size;
+                    operations += 1;
+                }
+            } while(System.nanoTime() - start < duration);
+            sender.flush();
+
+            long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            while(received.get() < sent) {
+                if(System.nanoTime() > deadline) {
+                    throw new IOException(mode+" received "+received.get()+" of "+sent+" bytes");
+                }
+                LockSupport.parkNanos(20000);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double mbPerSecond = sent / seconds / (1024 * 1024);
+            System.out.println(String.format(Locale.ROOT, "%-6s %8d B  chunk %6d  %10.2f MB/s  %12.0f ops/s",
+                                             mode, size, chunkSize, mbPerSecond, operations / seconds));
+            json.append(json.charAt(json.length() - 1) == '[' ? "\n" : ",\n");
+            json.append("    {\"mode\": \"").append(mode).append("\", \"payloadBytes\": ").append(size)
+                .append(", \"chunkSize\": ").append(chunkSize)
+                .append(", \"operations\": ").append(operations)
+                .append(", \"bytes\": ").append(sent)
+                .append(", \"seconds\": ").append(number(seconds))
+                .append(", \"mbPerSecond\": ").append(number(mbPerSecond))
+                .append(", \"opsPerSecond\": ").append(number(operations / seconds)).append("}");
+        } finally {
+            pair.close();
+        }
+    }
+
+    void roundTrips() throws IOException, InterruptedException {
+        Echo echo = new Echo();
+        Pinger pinger = new Pinger();
+        Pair pair = new Pair(echo, pinger, BluetoothClient.CHUNK_SIZE);
+        echo.service = pair.server;
+        long[] nanos = new long[options.roundTrips];
+        try {
+            pair.connect();
+            BluetoothMessage ping = new BluetoothMessage(CMD_PING, new byte[ROUND_TRIP_SIZE]);
+            for(int i = -WARMUP_ROUND_TRIPS; i < nanos.length; i++) {
+                long start = System.nanoTime();
+                pair.client.send(ping);
+                Long end = pinger.pongs.poll(TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+                if(end == null) throw new IOException("No reply to ping "+i);
+                if(i >= 0) nanos[i] = end - start;
+            }
+        } finally {
+            pair.close();
+        }
+        System.out.println(summary("round trip", nanos, 1000, "us"));
+        json.append("  \"roundTrip\": ").append(distribution(nanos, 1000, "Micros"))
+            .append(", \"payloadBytes\": ").append(ROUND_TRIP_SIZE).append("},\n");
+    }
+
+    void connects() throws IOException {
+        long[] connect = new long[options.connects];
+        long[] teardown = new long[options.connects];
+        for(int i = 0; i < connect.length; i++) {
+            Pair pair = new Pair(new Client(), new Client(), BluetoothClient.CHUNK_SIZE);
+            try {
+                connect[i] = pair.connect();
+                teardown[i] = pair.disconnect();
+            } finally {
+                pair.close();
+            }
+        }
+        System.out.println(summary("connect", connect, 1000000, "ms"));
+        System.out.println(summary("teardown", teardown, 1000000, "ms"));
+        json.append("  \"connect\": ").append(distribution(connect, 1000000, "Millis")).append("},\n");
+        json.append("  \"teardown\": ").append(distribution(teardown, 1000000, "Millis")).append("}\n");
+    }
+
+    void run() throws Exception {
+        if(options.trace != null) {
+            trace = new WireTraceRecorder(new File(options.trace));
+        }
+        json.append("{\n");
+        json.append("  \"harness\": \"loopback\",\n");
+        json.append("  \"startedAt\": ").append(System.currentTimeMillis()).append(",\n");
+        json.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+        json.append("  \"transport\": \"").append(options.transport).append("\",\n");
+        json.append("  \"queuedWrites\": ").append(options.queued).append(",\n");
+        json.append("  \"wireTrace\": ").append(options.trace != null).append(",\n");
+        json.append("  \"secondsPerRun\": ").append(number(options.seconds)).append(",\n");
+        json.append("  \"throughput\": [");
+        for(String mode : new String[] {"send", "write", "stream"}) {
+            for(int chunkSize : options.chunks) {
+                for(int size : options.sizes) {
+                    throughput(mode, size, chunkSize);
+                }
+            }
+        }
+        json.append("\n  ],\n");
+        roundTrips();
+        connects();
+        json.append("}\n");
+        if(trace != null) {
+            trace.close();
+            System.out.println("Recorded "+trace.getRecordCount()+" trace records");
+        }
+
+        File file = new File(options.out);
+        if(file.getParentFile() != null) file.getParentFile().mkdirs();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+        System.out.println("Report written to "+file);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int)Math.ceil(sorted.length * percentile / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    static String summary(String name, long[] nanos, long scale, String unit) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return String.format(Locale.ROOT, "%-10s n=%d  p50 %.1f%s  p90 %.1f%s  p99 %.1f%s  max %.1f%s", name, sorted.length,
+                             percentile(sorted, 50) / (double)scale, unit, percentile(sorted, 90) / (double)scale, unit,
+                             percentile(sorted, 99) / (double)scale, unit, sorted[sorted.length - 1] / (double)scale, unit);
+    }
+
+    /* An unterminated JSON object of the distribution's percentiles */
+    static String distribution(long[] nanos, long scale, String unit) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        long sum = 0;
+        for(long n : sorted) sum += n;
+        List<String> fields = new ArrayList<String>();
+        fields.add("\"count\": "+sorted.length);
+        fields.add("\"mean"+unit+"\": "+number(sum / (double)sorted.length / scale));
+        fields.add("\"min"+unit+"\": "+number(sorted[0] / (double)scale));
+        double[] percentiles = {50, 90, 99, 99.9};
+        String[] names = {"p50", "p90", "p99", "p999"};
+        for(int i = 0; i < percentiles.length; i++) {
+            fields.add("\""+names[i]+unit+"\": "+number(percentile(sorted, percentiles[i]) / (double)scale));
+        }
+        fields.add("\"max"+unit+"\": "+number(sorted[sorted.length - 1] / (double)scale));
+        StringBuilder b = new StringBuilder("{");
+        for(int i = 0; i < fields.size(); i++) {
+            if(i > 0) b.append(", ");
+            b.append(fields.get(i));
+        }
+        return b.toString();
+    }
+
+    static String number(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    public static void main(String[] args) throws Exception {
+        DebugLog.setDebugLogging(false);
+        Options options = Options.parse(args);
+        if(options.roundTrips <= 0 || options.connects <= 0) {
+            throw new IllegalArgumentException("--round-trips and --connects must be positive");
+        }
+        new LoopbackHarness(options).run();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,21 @@
+package com.threeDBJ.bluetooth.bench;
+
+import java.io.OutputStream;
+
+/**
+ * Discards what is written, counting the bytes so the writes can't be
+ * optimized away.
+ */
+public class NullOutputStream extends OutputStream {
+    public long count;
+
+    @Override
+    public void write(int b) {
+        count += 1;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        count += len;
+    }
+}
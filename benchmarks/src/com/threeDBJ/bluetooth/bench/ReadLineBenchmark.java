@@ -0,0 +1,55 @@
+package com.threeDBJ.bluetooth.bench;
+
+import com.threeDBJ.bluetooth.Streams;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Util.readLine, which reads a byte at a time. Lines are read over and
+ * over from an in memory stream.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReadLineBenchmark {
+    @Param({"16", "256"})
+    public int length;
+
+    private ByteArrayInputStream bytes;
+    private DataInputStream in;
+
+    @Setup
+    public void setup() {
+        byte[] line = new byte[length + 1];
+        for(int i = 0; i < length; i++) {
+            line[i] = (byte)('a' + i % 26);
+        }
+        line[length] = '\n';
+        bytes = new ByteArrayInputStream(line);
+        in = new DataInputStream(bytes);
+    }
+
+    @Benchmark
+    public String readLine() throws IOException {
+        bytes.reset();
+        return Streams.readLine(in);
+    }
+}
@@ -0,0 +1,407 @@
+package com.threeDBJ.bluetooth.bench;
+
+import com.threeDBJ.bluetooth.BluetoothExecutors;
+import com.threeDBJ.bluetooth.BluetoothService;
+import com.threeDBJ.bluetooth.DebugLog;
+import com.threeDBJ.bluetooth.Frame;
+import com.threeDBJ.bluetooth.FrameCodec;
+import com.threeDBJ.bluetooth.FrameDecoder;
+import com.threeDBJ.bluetooth.FrameReceiver;
+import com.threeDBJ.bluetooth.MemoryTransport;
+import com.threeDBJ.bluetooth.TraceReader;
+import com.threeDBJ.bluetooth.TransportSocket;
+import com.threeDBJ.bluetooth.WireTraceRecorder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays what a device sent in a wire trace recorded with
+ * BluetoothService.setWireTrace() into a BluetoothService, to measure the
+ * receive side on real traffic. The recorded bytes are written, read for
+ * read, into a MemoryTransport socket connected to the service, whose
+ * client is a FrameReceiver. Each recorded connection is replayed over a
+ * connection of its own.
+ *
+ *   latency      from writing the bytes that complete a frame until the
+ *                client's receivedFrame() is called with it
+ *   throughput   bytes and frames per second, from the first write of a
+ *                connection until its last frame reached the client
+ *
+ * At the recorded speed latency is what the service adds to each frame.
+ * As fast as possible it also includes the wait behind the frames before,
+ * and throughput is the most the service can take in.
+ *
+ *     ant replay -Dreplay.args="--trace /path/to/trace"
+ *
+ * Options, with their defaults:
+ *
+ *     --trace DIR              trace directory or a single segment,
+ *                              required
+ *     --device ADDRESS         the device to replay, by default the one
+ *                              that sent the most
+ *     --speed 0                1 to replay at the recorded timing, 2 twice
+ *                              as fast and so on, 0 as fast as possible
+ *     --repeat 1               times to replay the trace
+ *     --chunk 1024             BluetoothService.setChunkSize()
+ *     --out build/replay.json
+ *
+ * Compressed frames can't be replayed, as the service can't inflate them
+ * without the dictionary they were compressed with.
+ */
+public class TraceReplay {
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    static class Options {
+        String trace;
+        String device;
+        double speed = 0;
+        int repeat = 1;
+        int chunk = 1024;
+        String out = "build/replay.json";
+
+        static Options parse(String[] args) {
+            Options o = new Options();
+            for(int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if(i + 1 == args.length) throw new IllegalArgumentException("No value for "+arg);
+                String value = args[++i];
+                if("--trace".equals(arg)) {
+                    o.trace = value;
+                } else if("--device".equals(arg)) {
+                    o.device = value;
+                } else if("--speed".equals(arg)) {
+                    o.speed = Double.parseDouble(value);
+                } else if("--repeat".equals(arg)) {
+                    o.repeat = Integer.parseInt(value);
+                } else if("--chunk".equals(arg)) {
+                    o.chunk = Integer.parseInt(value);
+                } else if("--out".equals(arg)) {
+                    o.out = value;
+                } else {
+                    throw new IllegalArgumentException("Unknown option "+arg);
+                }
+            }
+            if(o.trace == null) throw new IllegalArgumentException("--trace is required");
+            if(o.speed < 0 || o.repeat <= 0 || o.chunk <= 0) {
+                throw new IllegalArgumentException("--speed can't be negative, --repeat and --chunk must be positive");
+            }
+            return o;
+        }
+    }
+
+    /* One recorded read */
+    static class Chunk {
+        final long timeMicros;
+        final byte[] data;
+        /* Frames the client has been given once this chunk is read */
+        int frames;
+
+        Chunk(long timeMicros, byte[] data) {
+            this.timeMicros = timeMicros;
+            this.data = data;
+        }
+    }
+
+    /* What the device sent over one recorded connection */
+    static class Session {
+        final List<Chunk> chunks = new ArrayList<Chunk>();
+        long bytes;
+        int frames;
+        int version = FrameCodec.VERSION_LEGACY;
+        /* Why it can't be replayed, or null */
+        String skipped;
+    }
+
+    /**
+     * Counts the frames a service hands its client, the way
+     * BluetoothService would, so each can be matched with the chunk that
+     * completed it.
+     */
+    static class FramePredictor implements FrameReceiver {
+        private final Session session;
+        private int expectedSeq;
+
+        FramePredictor(Session session) {
+            this.session = session;
+        }
+
+        public void receivedFrame(Frame frame) throws IOException {
+            if(frame.version != FrameCodec.VERSION_LEGACY) session.version = frame.version;
+            if((frame.flags & FrameCodec.FLAG_COMPRESSED) != 0) {
+                throw new IOException("Compressed frames");
+            }
+            if((frame.flags & FrameCodec.FLAG_CONTROL) != 0) return;
+            if((frame.flags & FrameCodec.FLAG_SEQUENCED) != 0) {
+                // Resent and out of order frames are dropped
+                if(frame.seq != expectedSeq) return;
+                expectedSeq += 1;
+            }
+            // Fragments are delivered as one once the last arrives
+            if((frame.flags & FrameCodec.FLAG_MORE) != 0) return;
+            // Replies to requests the service didn't make are dropped
+            if((frame.flags & FrameCodec.FLAG_REPLY) != 0) return;
+            session.frames += 1;
+        }
+    }
+
+    /* Notes when each frame reaches the client */
+    static class Receiver extends LoopbackHarness.Client implements FrameReceiver {
+        long[] arrivals = new long[0];
+        volatile int count;
+
+        void reset(int frames) {
+            arrivals = new long[frames];
+            count = 0;
+        }
+
+        public void receivedFrame(Frame frame) {
+            int n = count;
+            if(n < arrivals.length) arrivals[n] = System.nanoTime();
+            count = n + 1;
+        }
+    }
+
+    private final Options options;
+    private final List<Session> sessions = new ArrayList<Session>();
+    private String device;
+    private final ExecutorService executor = BluetoothExecutors.newWorkerPool("Replay", 16);
+    private final ScheduledExecutorService scheduler = BluetoothExecutors.newTimer("ReplayTimer");
+
+    TraceReplay(Options options) {
+        this.options = options;
+    }
+
+    /**
+     * Read the device's connections from the trace, and work out which
+     * chunk completes each frame.
+     */
+    void load() throws IOException {
+        HashMap<String, Long> sent = new HashMap<String, Long>();
+        TraceReader reader = new TraceReader(new File(options.trace));
+        try {
+            TraceReader.Record r;
+            while((r = reader.next()) != null) {
+                if(r.type == WireTraceRecorder.TYPE_DATA_IN && r.address != null) {
+                    Long total = sent.get(r.address);
+                    sent.put(r.address, (total == null ? 0 : total) + r.length);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        device = options.device;
+        if(device == null) {
+            long most = -1;
+            for(Map.Entry<String, Long> e : sent.entrySet()) {
+                if(e.getValue() > most) {
+                    device = e.getKey();
+                    most = e.getValue();
+                }
+            }
+        }
+        if(device == null || !sent.containsKey(device)) {
+            throw new IOException("No data from "+(device == null ? "any device" : device)+" in the trace");
+        }
+
+        HashMap<Integer, Session> open = new HashMap<Integer, Session>();
+        reader = new TraceReader(new File(options.trace));
+        try {
+            TraceReader.Record r;
+            while((r = reader.next()) != null) {
+                if(!device.equals(r.address)) continue;
+                if(r.type == WireTraceRecorder.TYPE_OPEN) {
+                    Session session = new Session();
+                    sessions.add(session);
+                    open.put(r.connection, session);
+                } else if(r.type == WireTraceRecorder.TYPE_CLOSE) {
+                    open.remove(r.connection);
+                } else if(r.type == WireTraceRecorder.TYPE_DATA_IN) {
+                    Session session = open.get(r.connection);
+                    if(session == null || session.skipped != null) continue;
+                    if(r.captured < r.length) {
+                        session.skipped = "a read too large for the trace";
+                        continue;
+                    }
+                    byte[] data = new byte[r.captured];
+                    System.arraycopy(r.buffer, 0, data, 0, r.captured);
+                    session.chunks.add(new Chunk(r.timeMicros, data));
+                    session.bytes += data.length;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        for(Session session : sessions) {
+            if(session.skipped != null) continue;
+            FrameDecoder decoder = new FrameDecoder();
+            FramePredictor predictor = new FramePredictor(session);
+            try {
+                for(Chunk chunk : session.chunks) {
+                    decoder.feed(chunk.data, 0, chunk.data.length, predictor);
+                    chunk.frames = session.frames;
+                }
+            } catch(IOException e) {
+                session.skipped = e.getMessage();
+            }
+        }
+    }
+
+    /**
+     * Replay a session into a fresh service.
+     * @param latencies Where to add each frame's latency, in nanoseconds
+     * @return How long it took, in nanoseconds
+     */
+    long replay(Session session, List<Long> latencies) throws IOException {
+        MemoryTransport transport = new MemoryTransport("replay");
+        Receiver receiver = new Receiver();
+        receiver.reset(session.frames);
+        BluetoothService service = new BluetoothService(receiver, transport);
+        service.setExecutor(executor);
+        service.setScheduler(scheduler);
+        service.setFrameVersion(session.version);
+        service.setChunkSize(options.chunk);
+        service.start();
+        final TransportSocket socket = transport.join(device).createSocket("replay", true);
+        try {
+            LoopbackHarness.await(service, BluetoothService.STATE_LISTEN);
+            socket.connect();
+            LoopbackHarness.await(service, BluetoothService.STATE_CONNECTED);
+            // Throw away acks and anything else the service sends
+            final InputStream in = socket.getInputStream();
+            executor.execute(new Runnable() {
+                    public void run() {
+                        byte[] buffer = new byte[4096];
+                        try {
+                            while(in.read(buffer) != -1);
+                        } catch(IOException e) {
+                            // Closed
+                        }
+                    }
+                });
+            OutputStream out = socket.getOutputStream();
+
+            List<Chunk> chunks = session.chunks;
+            long[] written = new long[chunks.size()];
+            long start = System.nanoTime();
+            long firstMicros = chunks.isEmpty() ? 0 : chunks.get(0).timeMicros;
+            for(int i = 0; i < chunks.size(); i++) {
+                Chunk chunk = chunks.get(i);
+                if(options.speed > 0) {
+                    long due = start + (long)((chunk.timeMicros - firstMicros) * 1000 / options.speed);
+                    long wait;
+                    while((wait = due - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+                }
+                written[i] = System.nanoTime();
+                out.write(chunk.data, 0, chunk.data.length);
+            }
+            long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            while(receiver.count < session.frames) {
+                if(System.nanoTime() > deadline) {
+                    throw new IOException("Only "+receiver.count+" of "+session.frames+" frames arrived");
+                }
+                LockSupport.parkNanos(20000);
+            }
+            long elapsed = System.nanoTime() - start;
+            if(receiver.count > session.frames) {
+                System.out.println("Warning: "+receiver.count+" frames arrived, expected "+session.frames);
+            }
+
+            int frame = 0;
+            for(int i = 0; i < chunks.size(); i++) {
+                for(; frame < chunks.get(i).frames; frame++) {
+                    latencies.add(receiver.arrivals[frame] - written[i]);
+                }
+            }
+            return elapsed;
+        } finally {
+            socket.close();
+            service.stop();
+        }
+    }
+
+    void run() throws Exception {
+        load();
+        int replayable = 0;
+        long bytes = 0;
+        int frames = 0;
+        for(Session session : sessions) {
+            if(session.skipped != null) {
+                System.out.println("Skipping a connection: "+session.skipped);
+                continue;
+            }
+            replayable += 1;
+            bytes += session.bytes;
+            frames += session.frames;
+        }
+        System.out.println(String.format(Locale.ROOT, "%s: %d connections, %d bytes, %d frames",
+                                         device, replayable, bytes, frames));
+        if(frames == 0) throw new IOException("Nothing to replay");
+
+        List<Long> latencies = new ArrayList<Long>();
+        long nanos = 0;
+        for(int i = 0; i < options.repeat; i++) {
+            for(Session session : sessions) {
+                if(session.skipped == null && session.frames > 0) nanos += replay(session, latencies);
+            }
+        }
+        long[] latency = new long[latencies.size()];
+        for(int i = 0; i < latency.length; i++) latency[i] = latencies.get(i);
+        double seconds = nanos / 1e9;
+        double bytesPerSecond = bytes * (double)options.repeat / seconds;
+        double framesPerSecond = frames * (double)options.repeat / seconds;
+
+        System.out.println(String.format(Locale.ROOT, "throughput %.2f MB/s  %.0f frames/s",
+                                         bytesPerSecond / 1e6, framesPerSecond));
+        System.out.println(LoopbackHarness.summary("latency", latency, 1000, "us"));
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"harness\": \"replay\",\n");
+        json.append("  \"startedAt\": ").append(System.currentTimeMillis()).append(",\n");
+        json.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+        json.append("  \"device\": \"").append(device).append("\",\n");
+        json.append("  \"speed\": ").append(LoopbackHarness.number(options.speed)).append(",\n");
+        json.append("  \"repeat\": ").append(options.repeat).append(",\n");
+        json.append("  \"chunkSize\": ").append(options.chunk).append(",\n");
+        json.append("  \"connections\": ").append(replayable).append(",\n");
+        json.append("  \"bytes\": ").append(bytes).append(",\n");
+        json.append("  \"frames\": ").append(frames).append(",\n");
+        json.append("  \"seconds\": ").append(LoopbackHarness.number(seconds)).append(",\n");
+        json.append("  \"bytesPerSecond\": ").append(LoopbackHarness.number(bytesPerSecond)).append(",\n");
+        json.append("  \"framesPerSecond\": ").append(LoopbackHarness.number(framesPerSecond)).append(",\n");
+        json.append("  \"latency\": ").append(LoopbackHarness.distribution(latency, 1000, "Micros")).append("}\n");
+        json.append("}\n");
+
+        File file = new File(options.out);
+        if(file.getParentFile() != null) file.getParentFile().mkdirs();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+        System.out.println("Report written to "+file);
+    }
+
+    public static void main(String[] args) throws Exception {
+        DebugLog.setDebugLogging(false);
+        new TraceReplay(Options.parse(args)).run();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,72 @@
+package com.threeDBJ.bluetooth.bench;
+
+import com.threeDBJ.bluetooth.Streams;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The loops behind BluetoothService.write(byte[]) and write(InputStream),
+ * writing into a stream that discards everything, so only the loop and
+ * buffer handling are measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WriteBenchmark {
+    /* BluetoothClient.CHUNK_SIZE by default */
+    @Param({"1024", "16384"})
+    public int chunkSize;
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private byte[] data;
+    private byte[] buffer;
+    private final NullOutputStream out = new NullOutputStream();
+
+    @Setup
+    public void setup() {
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+        buffer = new byte[chunkSize];
+    }
+
+    @Benchmark
+    public long chunkedWrite() throws IOException {
+        Streams.writeChunked(out, data, size, chunkSize);
+        return out.count;
+    }
+
+    /* As write(InputStream) does it, through a BufferedInputStream */
+    @Benchmark
+    public long streamCopyBuffered() throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(data), chunkSize);
+        byte[] buffer = new byte[chunkSize];
+        return Streams.copy(in, out, buffer);
+    }
+
+    /* Reusing one buffer and reading the stream directly */
+    @Benchmark
+    public long streamCopyDirect() throws IOException {
+        return Streams.copy(new ByteArrayInputStream(data), out, buffer);
+    }
+}
@@ -44,7 +44,10 @@ public abstract class BluetoothActivity extends FragmentActivity {
             // Enable the bluetooth adapter if necessary
             Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
-        } else {
+        }
+        if (btAdapter != null) {
+            // Keep the bonded device index used by connectToAddress current
+            BondedDeviceCache.getInstance().register(this);
         }
     }
 
@@ -28,12 +28,24 @@ public interface BluetoothClient {
     public static final String DEVICE_ADDRESS = "device_address";
     public static final String DEVICE_NAME = "device_name";
     public static final String TOAST = "toast";
+    public static final String TRANSFER_OFFSET = "transfer_offset";
+    public static final String TRANSFER_LENGTH = "transfer_length";
 
     /* State change message commands */
     public static final int MESSAGE_STATE_CHANGE = 200;
     public static final int MESSAGE_DEVICE_ADDRESS = 202;
     public static final int MESSAGE_DEVICE_NAME = 203;
     public static final int MESSAGE_TOAST = 204;
+    /* One device connected or disconnected. arg1 is the device's state and
+       the DEVICE_ADDRESS key of the data bundle holds its address. */
+    public static final int MESSAGE_PEER_STATE_CHANGE = 205;
+    /* A lost connection is being retried. arg1 is the attempt number and
+       arg2 the delay before it in ms, or -1 when giving up. */
+    public static final int MESSAGE_RECONNECT = 206;
+    /* A device acked part of a transfer. arg1 is the transfer id, arg2 is 1
+       once the transfer is complete, and the data bundle holds the
+       DEVICE_ADDRESS and the acked TRANSFER_OFFSET and TRANSFER_LENGTH. */
+    public static final int MESSAGE_TRANSFER = 207;
 
     public void receivedData(int val, InputStream inputStream) throws IOException;
     public void startService();
@@ -6,12 +6,14 @@ import android.support.v7.app.ActionBar;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -23,32 +25,41 @@ import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-
 public class BluetoothDiscoverActivity extends ActionBarActivity {
     public static final String TAG = "BTAndroid";
     static final int REFRESH_ID = 1;
     static final String NO_DEVICE_TEXT = "No devices found";
     BluetoothAdapter bluetoothAdapter;
-    ArrayAdapter<String> deviceDisplay;
-    ArrayList<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
+    ArrayAdapter<DeviceIndex.Entry> deviceDisplay;
+    DeviceIndex devices;
     ProgressBar progress;
 
     @Override
     public void onCreate(Bundle instanceState) {
         super.onCreate(instanceState);
         setContentView(R.layout.bluetooth_discover);
-        deviceDisplay = new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1); //android.R.id.text1
+        devices = new DeviceIndex(new Handler());
+        deviceDisplay = new ArrayAdapter<DeviceIndex.Entry>(this, android.R.layout.simple_list_item_1,
+                                                            devices.getDevices()); //android.R.id.text1
+        devices.setListener(new DeviceIndex.Listener() {
+                public void devicesChanged(DeviceIndex index) {
+                    deviceDisplay.notifyDataSetChanged();
+                }
+            });
 
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        // Bonded devices are looked up for every device found
+        if(bluetoothAdapter != null) BondedDeviceCache.getInstance().register(this);
 
         ListView list = (ListView)findViewById(R.id.device_list);
         list.setAdapter(deviceDisplay);
         list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
                 @Override
                 public void onItemClick(AdapterView<?> parent, final View view, int position, long id) {
+                    // The progress footer
+                    if(position >= devices.size()) return;
                     Intent intent = new Intent();
-                    intent.putExtra("device_address", devices.get(position));
+                    intent.putExtra("device_address", devices.get(position).device);
                     setResult(RESULT_OK, intent);
                     finish();
                 }
@@ -73,8 +84,8 @@ public class BluetoothDiscoverActivity extends ActionBarActivity {
             finish();
             break;
         case REFRESH_ID:
-            deviceDisplay.clear();
             devices.clear();
+            devices.loadCache(DiscoveryCache.getInstance(this), bluetoothAdapter);
             bluetoothAdapter.cancelDiscovery();
             bluetoothAdapter.startDiscovery();
             break;
@@ -85,10 +96,10 @@ public class BluetoothDiscoverActivity extends ActionBarActivity {
     @Override
     public void onResume() {
         super.onResume();
-        deviceDisplay.clear();
         devices.clear();
         IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
         registerReceiver(bluetoothReceiver, filter);
+        devices.loadCache(DiscoveryCache.getInstance(this), bluetoothAdapter);
         bluetoothAdapter.startDiscovery();
     }
 
@@ -97,21 +108,24 @@ public class BluetoothDiscoverActivity extends ActionBarActivity {
         super.onPause();
         bluetoothAdapter.cancelDiscovery();
         unregisterReceiver(bluetoothReceiver);
+        DiscoveryCache.getInstance(this).save();
     }
 
+    /**
+     * Add a found device. The list shows it with the next batch.
+     */
     public void addDevice(BluetoothDevice device) {
-        String display = device.getName() + "\n" + device.getAddress();
-        if(deviceDisplay.getPosition(display) != -1) {
-            DebugLog.e(TAG, "Duplicate device not added");
-        } else if(display.startsWith("Podo")) {
-            DebugLog.e(TAG, "Found relevant device: "+display);
-            deviceDisplay.insert(display, 0);
-            devices.add(0, device);
-        } else {
-            DebugLog.e(TAG, "Found device: "+display);
-            deviceDisplay.add(display);
-            devices.add(device);
-        }
+        devices.found(device);
+    }
+
+    /**
+     * @param rssi The device's signal strength in dBm, or
+     *             DiscoveryCache.RSSI_UNKNOWN
+     * @param deviceClass The device's BluetoothClass.getDeviceClass(), or
+     *                    DiscoveryCache.CLASS_UNKNOWN
+     */
+    public void addDevice(BluetoothDevice device, int rssi, int deviceClass) {
+        devices.found(device, rssi, deviceClass);
     }
 
     private final BroadcastReceiver bluetoothReceiver = new BroadcastReceiver() {
@@ -119,7 +133,10 @@ public class BluetoothDiscoverActivity extends ActionBarActivity {
                 String action = intent.getAction();
                 if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                     BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                    addDevice(device);
+                    BluetoothClass btClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+                    addDevice(device, intent.getShortExtra(BluetoothDevice.EXTRA_RSSI,
+                                                           (short)DiscoveryCache.RSSI_UNKNOWN),
+                              btClass != null ? btClass.getDeviceClass() : DiscoveryCache.CLASS_UNKNOWN);
                 } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                     progress.setVisibility(View.GONE);
                 }
@@ -2,6 +2,7 @@ package com.threeDBJ.bluetooth;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -9,6 +10,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Rect;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -21,17 +23,14 @@ import android.widget.TextView;
 
 import android.support.v4.app.DialogFragment;
 
-import java.util.ArrayList;
-
 public class BluetoothDiscoverFragment extends DialogFragment {
     static final String TAG = "BTAndroid";
     static final String NO_DEVICE_TEXT = "No devices found";
     BluetoothActivity btActivity;
     BluetoothAdapter bluetoothAdapter;
-    ArrayAdapter<String> deviceDisplay;
-    ArrayList<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
+    ArrayAdapter<DeviceIndex.Entry> deviceDisplay;
+    DeviceIndex devices;
     ProgressBar progress;
-    int numRelevant = 0;
 
     static BluetoothDiscoverFragment newInstance() {
         BluetoothDiscoverFragment f = new BluetoothDiscoverFragment();
@@ -57,6 +56,12 @@ public class BluetoothDiscoverFragment extends DialogFragment {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        devices = new DeviceIndex(new Handler());
+        devices.setListener(new DeviceIndex.Listener() {
+                public void devicesChanged(DeviceIndex index) {
+                    if(deviceDisplay != null) deviceDisplay.notifyDataSetChanged();
+                }
+            });
 
         int style = DialogFragment.STYLE_NORMAL;
         int theme = android.R.style.Theme_Holo_Dialog;
@@ -79,13 +84,14 @@ public class BluetoothDiscoverFragment extends DialogFragment {
         ListView list = (ListView)v.findViewById(R.id.device_list);
         progress = new ProgressBar(btActivity);
         list.addFooterView(progress, null, false);
-        deviceDisplay = new ArrayAdapter<String>(btActivity, android.R.layout.simple_list_item_1); //android.R.id.text1
+        deviceDisplay = new ArrayAdapter<DeviceIndex.Entry>(btActivity, android.R.layout.simple_list_item_1,
+                                                            devices.getDevices()); //android.R.id.text1
         list.setAdapter(deviceDisplay);
         list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
                 @Override
                 public void onItemClick(AdapterView<?> parent, final View view, int position, long id) {
                     if(position < devices.size()) {
-                        btActivity.connectDevice(devices.get(position), false);
+                        btActivity.connectDevice(devices.get(position).device, false);
                         dismiss();
                     }
                 }
@@ -99,6 +105,7 @@ public class BluetoothDiscoverFragment extends DialogFragment {
         super.onResume();
         IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
         btActivity.registerReceiver(bluetoothReceiver, filter);
+        devices.loadCache(DiscoveryCache.getInstance(btActivity), bluetoothAdapter);
         bluetoothAdapter.startDiscovery();
     }
 
@@ -107,6 +114,7 @@ public class BluetoothDiscoverFragment extends DialogFragment {
         super.onPause();
         bluetoothAdapter.cancelDiscovery();
         btActivity.unregisterReceiver(bluetoothReceiver);
+        DiscoveryCache.getInstance(btActivity).save();
     }
 
     @Override
@@ -115,26 +123,24 @@ public class BluetoothDiscoverFragment extends DialogFragment {
     }
 
     public void clearDevices() {
-        deviceDisplay.clear();
         devices.clear();
-        numRelevant = 0;
     }
 
+    /**
+     * Add a found device. The list shows it with the next batch.
+     */
     public void addDevice(BluetoothDevice device) {
-        String display = device.getName() + "\n" + device.getAddress();
-        if(deviceDisplay.getPosition(display) != -1) {
-            DebugLog.e(TAG, "Duplicate device not added");
-        } else if(display.startsWith("Podo")) {
-            DebugLog.e(TAG, "Found relevant device: "+display);
-            deviceDisplay.insert(display, numRelevant);
-            devices.add(numRelevant, device);
-            numRelevant += 1;
-        } else {
-            DebugLog.e(TAG, "Found device: "+display);
-            deviceDisplay.add(display);
-            devices.add(device);
-        }
-        DebugLog.e(TAG, "Device list size: "+devices.size()+" "+deviceDisplay.getCount());
+        devices.found(device);
+    }
+
+    /**
+     * @param rssi The device's signal strength in dBm, or
+     *             DiscoveryCache.RSSI_UNKNOWN
+     * @param deviceClass The device's BluetoothClass.getDeviceClass(), or
+     *                    DiscoveryCache.CLASS_UNKNOWN
+     */
+    public void addDevice(BluetoothDevice device, int rssi, int deviceClass) {
+        devices.found(device, rssi, deviceClass);
     }
 
     private final BroadcastReceiver bluetoothReceiver = new BroadcastReceiver() {
@@ -142,9 +148,12 @@ public class BluetoothDiscoverFragment extends DialogFragment {
                 String action = intent.getAction();
                 if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                     BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                    addDevice(device);
+                    BluetoothClass btClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+                    addDevice(device, intent.getShortExtra(BluetoothDevice.EXTRA_RSSI,
+                                                           (short)DiscoveryCache.RSSI_UNKNOWN),
+                              btClass != null ? btClass.getDeviceClass() : DiscoveryCache.CLASS_UNKNOWN);
                 } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
-                    DebugLog.e(TAG, "Bluetooth device search complete");
+                    DebugLog.d(TAG, "Bluetooth device search complete");
                     //progress.setVisibility(View.GONE);
                 }
             }
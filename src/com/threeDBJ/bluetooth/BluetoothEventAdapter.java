@@ -0,0 +1,28 @@
+package com.threeDBJ.bluetooth;
+
+/**
+ * A BluetoothEventListener that ignores every event, to extend with only
+ * the callbacks of interest.
+ */
+public class BluetoothEventAdapter implements BluetoothEventListener {
+    public void stateChanged(int state) {
+    }
+
+    public void peerStateChanged(String address, int state) {
+    }
+
+    public void deviceConnected(String address, String name) {
+    }
+
+    public void connectionFailed(String address) {
+    }
+
+    public void connectionLost(String address) {
+    }
+
+    public void reconnecting(String address, int attempt, long delayMs) {
+    }
+
+    public void transferProgress(String address, int id, long offset, long length, boolean complete) {
+    }
+}
@@ -0,0 +1,59 @@
+package com.threeDBJ.bluetooth;
+
+/**
+ * Typed callbacks for the events BluetoothService otherwise sends to the
+ * client's Handler, without a Message and Bundle for each. Set one with
+ * BluetoothService.setEventListener(). Clients that only want these can
+ * return null from getHandler().
+ *
+ * Without an executor the callbacks run one at a time, in order, on the
+ * service's threads, but never while the service is locked. Events raised
+ * with the service locked are delivered right after by its timer thread,
+ * so callbacks should return quickly. They may call the service, and wait
+ * for other threads that do.
+ *
+ * @see BluetoothEventAdapter
+ */
+public interface BluetoothEventListener {
+    /**
+     * The service's state changed, as MESSAGE_STATE_CHANGE.
+     * @param state One of the BluetoothService.STATE_ constants
+     */
+    public void stateChanged(int state);
+
+    /**
+     * One device connected or disconnected, as MESSAGE_PEER_STATE_CHANGE.
+     * @param state BluetoothService.STATE_CONNECTED or STATE_NONE
+     */
+    public void peerStateChanged(String address, int state);
+
+    /**
+     * A device is connected and ready, as MESSAGE_DEVICE_NAME.
+     * @param name The device's name, or null if it isn't known
+     */
+    public void deviceConnected(String address, String name);
+
+    /**
+     * Connecting to a device failed, and it isn't being retried.
+     */
+    public void connectionFailed(String address);
+
+    /**
+     * The connection to a device was lost.
+     */
+    public void connectionLost(String address);
+
+    /**
+     * A lost connection is being retried, as MESSAGE_RECONNECT.
+     * @param attempt The attempt number, from 1
+     * @param delayMs The delay before the attempt, or -1 when giving up
+     */
+    public void reconnecting(String address, int attempt, long delayMs);
+
+    /**
+     * A device acked part of a transfer, as MESSAGE_TRANSFER.
+     * @param offset How much of the transfer is acked
+     * @param length The length of the transfer
+     */
+    public void transferProgress(String address, int id, long offset, long length, boolean complete);
+}
@@ -0,0 +1,66 @@
+package com.threeDBJ.bluetooth;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factories for the thread pools BluetoothService runs its accept,
+ * connect, connected and writer work on. Threads are named and are
+ * daemons, so an idle pool never keeps the process alive.
+ */
+public final class BluetoothExecutors {
+    /* Enough for both accept threads, a connect, and a few connections */
+    public static final int DEFAULT_MAX_THREADS = 16;
+    /* How long an idle pool thread waits for new work before exiting */
+    public static final long KEEP_ALIVE_SECONDS = 60;
+
+    private BluetoothExecutors() {
+    }
+
+    /**
+     * Create a bounded pool for the service's long running work. Idle
+     * threads are reused, so reconnecting doesn't spawn new threads, and
+     * work beyond maxThreads is rejected instead of queued, since every
+     * task blocks on a socket for as long as it runs.
+     *
+     * @param name Prefix of the thread names
+     * @param maxThreads The most threads the pool will run at once
+     */
+    public static ThreadPoolExecutor newWorkerPool(String name, int maxThreads) {
+        return new ThreadPoolExecutor(0, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                      new SynchronousQueue<Runnable>(), newThreadFactory(name));
+    }
+
+    /**
+     * Create a single thread scheduler for short delayed work such as
+     * coalesced flushes. The thread exits once nothing has been scheduled
+     * for KEEP_ALIVE_SECONDS, so a timer left behind by a finished service
+     * doesn't keep a thread for the life of the process.
+     *
+     * @param name The thread name
+     */
+    public static ScheduledExecutorService newTimer(String name) {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, newThreadFactory(name));
+        timer.setRemoveOnCancelPolicy(true);
+        timer.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        timer.allowCoreThreadTimeOut(true);
+        return timer;
+    }
+
+    public static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            };
+    }
+}
@@ -8,6 +8,13 @@ import java.io.UnsupportedEncodingException;
 public class BluetoothMessage {
     public int cmd, arg=-1;
     public byte[] bytes;
+    /* Flush as soon as the message is written, even when writes are
+       being coalesced. For latency critical commands. */
+    public boolean urgent;
+    /* Logical channel to send on. Messages on channels other than 0 need
+       version 1 frames, and large ones are sent in fragments so other
+       channels' messages can go in between. */
+    public int channel;
 
     public BluetoothMessage() {}
 
@@ -38,7 +45,16 @@ public class BluetoothMessage {
         return arg != -1;
     }
 
+    /**
+     * Write the message as a legacy frame.
+     *
+     * @throws IOException if the payload is too long for a legacy frame,
+     *         see FrameEncoder for larger messages
+     */
     public void write(OutputStream out) throws IOException {
+        if(bytes != null && bytes.length > FrameCodec.MAX_LEGACY_PAYLOAD) {
+            throw new IOException("Payload of "+bytes.length+" bytes is too long for a legacy frame");
+        }
         byte len = 2;
         if(bytes != null) len += bytes.length;
         byte[] msg = new byte[len];
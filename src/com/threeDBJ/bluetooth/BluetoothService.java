@@ -1,60 +1,113 @@
 package com.threeDBJ.bluetooth;
 
 import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.reflect.Method;
-import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Set;
-import java.util.UUID;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Looper;
 import android.os.Message;
-import android.util.Log;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
  * connections with other devices. It has a thread that listens for
  * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * thread for performing data transmissions when connected. These run as
+ * tasks on a bounded executor, so reconnecting reuses pooled threads.
+ *
+ * By default the service talks to one device at a time. With
+ * setMaxConnections() it keeps a connection per device, keyed by address,
+ * and keeps listening while devices are connected.
+ *
+ * Sockets come from a Transport. By default this is RfcommTransport on the
+ * default BluetoothAdapter, but the service runs unchanged on any other
+ * Transport, eg. MemoryTransport or TcpTransport on a plain JVM.
  */
 public class BluetoothService {
     // Debugging
     private static final String TAG = "BTAndroid";
     private static final boolean D = true;
 
-    // Name for the SDP record when creating server socket
-    private static final String NAME_SECURE = "BluetoothSecure";
-    private static final String NAME_INSECURE = "BluetoothInsecure";
-
-    // Unique UUID for this application
-    //private static final UUID UUID_SECURE = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
-    private static final UUID UUID_SECURE = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-    //private static final UUID UUID_INSECURE = UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
-    private static final UUID UUID_INSECURE = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-
     // Member fields
     private volatile BluetoothClient client;
-    private BluetoothAdapter btAdapter;
+    private final Transport transport;
     private Handler handler;
     private Handler progressHandler;
     private AcceptThread secureAcceptThread;
     private AcceptThread insecureAcceptThread;
     private ConnectThread connectThread;
     private ConnectedThread connectedThread;
+    private final LinkedHashMap<String, ConnectedThread> connections = new LinkedHashMap<String, ConnectedThread>();
+    private int maxConnections = 1;
     private int state;
+    private volatile int frameVersion = FrameCodec.VERSION_LEGACY;
+    private volatile boolean queuedWrites;
+    private volatile int coalesceSize;
+    private volatile long coalesceDelayMs;
+    private volatile int chunkSize = BluetoothClient.CHUNK_SIZE;
+    private volatile WireTraceRecorder wireTrace;
+    private volatile BluetoothEventListener events;
+    private volatile int flowWindow;
+    private volatile int compressThreshold;
+    private volatile byte[] compressDictionary;
+    private final HashMap<Integer, Integer> channelWeights = new HashMap<Integer, Integer>();
+    private volatile boolean strictPriority;
+    private ExecutorService executor;
+    private ScheduledExecutorService scheduler;
     private Object clientLock = new Object();
 
+    // Reconnect state, the last device connected and the retry in progress
+    private ReconnectPolicy reconnectPolicy;
+    private final Random random = new Random();
+    private String lastAddress;
+    private boolean lastSecure;
+    private int reconnectAttempt;
+    private boolean reconnecting;
+    private ScheduledFuture<?> reconnectFuture;
+
+    // Strategies raced by outgoing connects, null for a single socket
+    private List<ConnectStrategy> connectStrategies;
+    private long connectStaggerMs;
+    private final ConnectStats connectStats = new ConnectStats();
+    // Counters by device address, kept across reconnects
+    private final HashMap<String, BluetoothStats> stats = new HashMap<String, BluetoothStats>();
+
+    private final TransferManager transfers = new TransferManager(new TransferManager.Listener() {
+            public void transferProgress(String address, int id, long offset, long length, boolean complete) {
+                BluetoothEventListener listener = events;
+                if(listener != null) listener.transferProgress(address, id, offset, length, complete);
+                if(client != null && handler != null) {
+                    Message msg = handler.obtainMessage(BluetoothClient.MESSAGE_TRANSFER, id, complete ? 1 : 0);
+                    Bundle bundle = new Bundle();
+                    bundle.putString(BluetoothClient.DEVICE_ADDRESS, address);
+                    bundle.putLong(BluetoothClient.TRANSFER_OFFSET, offset);
+                    bundle.putLong(BluetoothClient.TRANSFER_LENGTH, length);
+                    msg.setData(bundle);
+                    handler.sendMessage(msg);
+                }
+            }
+        });
+
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
     public static final int STATE_LISTEN = 1;     // now listening for incoming connections
@@ -62,7 +115,11 @@ public class BluetoothService {
     public static final int STATE_CONNECTED = 3;  // now connected to a remote device
 
     public BluetoothService() {
-        btAdapter = BluetoothAdapter.getDefaultAdapter();
+        this(new RfcommTransport());
+    }
+
+    public BluetoothService(Transport transport) {
+        this.transport = transport;
         state = STATE_NONE;
     }
 
@@ -71,11 +128,23 @@ public class BluetoothService {
      * @param handler  A Handler to send messages back to the UI Activity
      */
     public BluetoothService(BluetoothClient client) {
-        btAdapter = BluetoothAdapter.getDefaultAdapter();
-        state = STATE_NONE;
+        this(client, new RfcommTransport());
+    }
+
+    /**
+     * Constructor. Prepares a new session on the given transport.
+     * @param client  The client to deliver data and events to
+     * @param transport  The transport to listen and connect on
+     */
+    public BluetoothService(BluetoothClient client, Transport transport) {
+        this(transport);
         setClient(client);
     }
 
+    public Transport getTransport() {
+        return transport;
+    }
+
     public void setClient(BluetoothClient client) {
         this.client = client;
         ConnectedThread r = null;
@@ -108,11 +177,13 @@ public class BluetoothService {
      * @param state  An integer defining the current connection state
      */
     private synchronized void setState(int state) {
-        DebugLog.e(TAG, "setState() " + state + " -> " + state);
+        DebugLog.d(TAG, "setState() {} -> {}", this.state, state);
         this.state = state;
 
+        BluetoothEventListener listener = events;
+        if(listener != null) listener.stateChanged(state);
         // Give the new state to the Handler so the UI Activity can update
-        if(client != null) {
+        if(client != null && handler != null) {
             handler.obtainMessage(BluetoothClient.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
         }
     }
@@ -123,24 +194,480 @@ public class BluetoothService {
         return state;
     }
 
+    /**
+     * Set the frame format used by send(BluetoothMessage). Legacy frames
+     * are limited to FrameCodec.MAX_LEGACY_PAYLOAD bytes of payload, so
+     * both ends must use version 1 to send larger messages.
+     * @param version FrameCodec.VERSION_LEGACY (default) or FrameCodec.VERSION_1
+     */
+    public void setFrameVersion(int version) {
+        this.frameVersion = version;
+    }
+
+    public int getFrameVersion() {
+        return frameVersion;
+    }
+
+    /**
+     * Set whether connections made from now on use credit based flow
+     * control for send(BluetoothMessage). Messages are numbered and kept
+     * until the peer acks them, at most window at a time, and a NACK from
+     * the peer resends them. Flow controlled connections always queue
+     * their writes, as with setQueuedWrites(true), and their writer thread
+     * waits while the peer grants no credit, so send() never blocks, not
+     * even from the connection's own FrameReceiver.receivedFrame(), which
+     * must keep reading for the credits to arrive. Raw write() calls are
+     * not flow controlled.
+     *
+     * Needs version 1 frames, and a peer that decodes frames, ie. whose
+     * client is a FrameReceiver or which has flow control enabled. Sequenced
+     * frames are acked whatever this is set to.
+     * @param window The most unacked messages in flight, or 0 (default)
+     *               to disable
+     * @see FlowControl
+     */
+    public void setFlowControl(int window) {
+        this.flowWindow = window;
+    }
+
+    public int getFlowControl() {
+        return flowWindow;
+    }
+
+    /**
+     * Set whether connections made from now on compress large payloads.
+     * When a connection starts, the service sends a REQUEST_PROFILE control
+     * frame listing the codecs it can inflate, and the peer answers with a
+     * CLIENT_PROFILE frame listing its own. Once the peer's profile is in,
+     * version 1 frames with payloads of at least threshold bytes are
+     * deflated, unless that wouldn't make them smaller.
+     *
+     * The peer must decode frames to answer, ie. its client is a
+     * FrameReceiver or TransferReceiver. Compressed frames are inflated
+     * whatever this is set to.
+     * @param threshold The smallest payload to compress, or 0 (default) to
+     *                  disable
+     */
+    public void setCompression(int threshold) {
+        setCompression(threshold, null);
+    }
+
+    /**
+     * Set whether connections compress large payloads, starting from a
+     * preset dictionary of data typical of the payloads, which helps small
+     * payloads most. The dictionary is only used if the peer has the same
+     * one.
+     * @param threshold The smallest payload to compress, or 0 to disable
+     * @param dictionary The preset dictionary, or null
+     */
+    public void setCompression(int threshold, byte[] dictionary) {
+        this.compressDictionary = dictionary;
+        this.compressThreshold = threshold;
+    }
+
+    public int getCompression() {
+        return compressThreshold;
+    }
+
+    /**
+     * Set the weight of a logical channel, see BluetoothMessage.channel.
+     * The writer thread of a connection with queued writes sends messages
+     * on heavier channels first or more often, depending on
+     * setStrictPriority(). Large messages on channels other than 0 are
+     * sent in fragments of ChannelScheduler.FRAGMENT_SIZE bytes, so a
+     * small message on a heavy channel waits for one fragment, not a
+     * whole bulk message. Takes effect for connections made from now on.
+     * @param weight The weight, 1 by default
+     */
+    public void setChannelWeight(int channel, int weight) {
+        synchronized (channelWeights) {
+            channelWeights.put(channel, Math.max(weight, 1));
+        }
+    }
+
+    public int getChannelWeight(int channel) {
+        synchronized (channelWeights) {
+            Integer weight = channelWeights.get(channel);
+            return weight == null ? 1 : weight;
+        }
+    }
+
+    /**
+     * Set how channel weights are used. With strict priority, the
+     * heaviest channel with anything queued always goes next. Otherwise
+     * (default) channels take turns, each sending in proportion to its
+     * weight, so no channel is starved.
+     */
+    public void setStrictPriority(boolean strict) {
+        this.strictPriority = strict;
+    }
+
+    public boolean getStrictPriority() {
+        return strictPriority;
+    }
+
+    /**
+     * Set whether connections made from now on use a writer thread. When
+     * enabled, send() and the write() methods queue the data and return
+     * immediately, and a single writer thread per connection does the
+     * socket writes in order. Each message or write goes out whole, even
+     * with several threads sending at once. Arrays and streams passed in
+     * must not be modified until they have been written.
+     * @param queued true to queue writes, false (default) to write on the
+     *               calling thread
+     */
+    public void setQueuedWrites(boolean queued) {
+        this.queuedWrites = queued;
+    }
+
+    public boolean getQueuedWrites() {
+        return queuedWrites;
+    }
+
+    /**
+     * Set how connections made from now on coalesce writes. Small writes
+     * are gathered into one packet sized buffer, which is written when it
+     * fills, when flush() is called, or delayMs after the last write.
+     * Urgent messages and write(int, true) flush straight away.
+     * @param packetSize The size of the buffer, eg.
+     *                   CoalescingOutputStream.DEFAULT_PACKET_SIZE, or 0 to
+     *                   flush after every write (default)
+     * @param delayMs How long to wait for more data before flushing
+     */
+    public void setWriteCoalescing(int packetSize, long delayMs) {
+        this.coalesceDelayMs = delayMs;
+        this.coalesceSize = packetSize;
+    }
+
+    /**
+     * Set the size of the socket reads and writes of connections made from
+     * now on. write(byte[]) is split into writes of at most this size, and
+     * write(InputStream) copies through a buffer this large.
+     * @param size The size in bytes, BluetoothClient.CHUNK_SIZE by default
+     */
+    public void setChunkSize(int size) {
+        if(size <= 0) throw new IllegalArgumentException("Chunk size must be positive");
+        this.chunkSize = size;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Record what connections made from now on read and write, for
+     * looking into problems after the fact. Recording doesn't stop when
+     * the service does; close the recorder when done with it.
+     * @param recorder The recorder, or null (default) to stop recording
+     *                 new connections
+     */
+    public void setWireTrace(WireTraceRecorder recorder) {
+        this.wireTrace = recorder;
+    }
+
+    public WireTraceRecorder getWireTrace() {
+        return wireTrace;
+    }
+
+    /**
+     * Deliver events to a typed listener, as well as to the client's
+     * Handler. The listener is called on the service's threads, in order
+     * and never while the service is locked.
+     * @param listener The listener, or null to stop
+     */
+    public void setEventListener(BluetoothEventListener listener) {
+        setEventListener(listener, null);
+    }
+
+    /**
+     * Deliver events to a typed listener, as well as to the client's
+     * Handler.
+     * @param listener The listener, or null to stop
+     * @param executor Runs the callbacks, in the order of the events if it
+     *                 runs tasks in order, or null to call the listener on
+     *                 the service's threads
+     */
+    public void setEventListener(BluetoothEventListener listener, Executor executor) {
+        this.events = listener != null ? new EventDispatcher(this, listener, executor) : null;
+    }
+
+    /**
+     * Set the executor that runs the accept, connect, connected and writer
+     * threads. Every task blocks on a socket while it runs, so a bounded
+     * executor must have room for two accept threads, a connect, one per
+     * raced connect strategy and two threads per connection. Call before
+     * start() or connect(). Several services can share one executor.
+     * @param executor The executor, or null for a pool of
+     *                 BluetoothExecutors.DEFAULT_MAX_THREADS threads
+     * @see BluetoothExecutors#newWorkerPool(String, int)
+     */
+    public synchronized void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public synchronized ExecutorService getExecutor() {
+        if(executor == null) {
+            executor = BluetoothExecutors.newWorkerPool("Bluetooth", BluetoothExecutors.DEFAULT_MAX_THREADS);
+        }
+        return executor;
+    }
+
+    /**
+     * Set the scheduler used for delayed work such as coalesced flushes.
+     * @param scheduler The scheduler, or null for a single daemon thread
+     *                  that exits when idle
+     */
+    public synchronized void setScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Timer thread for delayed work such as coalesced flushes.
+     */
+    synchronized ScheduledExecutorService getScheduler() {
+        if(scheduler == null) {
+            scheduler = BluetoothExecutors.newTimer("BluetoothTimer");
+        }
+        return scheduler;
+    }
+
+    /**
+     * Set how many devices can be connected at once. With more than one,
+     * connecting to a device leaves the other connections alone, and the
+     * accept threads keep listening while devices are connected.
+     * @param max The maximum number of connections, 1 by default
+     */
+    public synchronized void setMaxConnections(int max) {
+        this.maxConnections = Math.max(1, max);
+    }
+
+    public synchronized int getMaxConnections() {
+        return maxConnections;
+    }
+
+    private boolean multiPeer() {
+        return maxConnections > 1;
+    }
+
+    /**
+     * @return The addresses of the connected devices, oldest first
+     */
+    public synchronized List<String> getConnectedAddresses() {
+        return new ArrayList<String>(connections.keySet());
+    }
+
+    /**
+     * Return the connection state of one device.
+     * @param address The address of the device
+     * @return STATE_CONNECTED, STATE_CONNECTING or STATE_NONE
+     */
+    public synchronized int getState(String address) {
+        if (connections.containsKey(address)) return STATE_CONNECTED;
+        if (connectThread != null && address.equals(connectThread.mmAddress)) return STATE_CONNECTING;
+        return STATE_NONE;
+    }
+
+    /**
+     * Set how a lost connection to the last connected device is retried.
+     * Each attempt goes through connectToAddress() and is reported to the
+     * client with MESSAGE_RECONNECT.
+     * @param policy The retry policy, or null (default) to leave
+     *               reconnecting to the client
+     * @see ReconnectPolicy#defaultPolicy()
+     */
+    public synchronized void setReconnectPolicy(ReconnectPolicy policy) {
+        this.reconnectPolicy = policy;
+        if (policy == null) cancelReconnect();
+    }
+
+    public synchronized ReconnectPolicy getReconnectPolicy() {
+        return reconnectPolicy;
+    }
+
+    /**
+     * @return The address of the last device connected, which is the
+     *         device a lost connection is retried to
+     */
+    public synchronized String getLastAddress() {
+        return lastAddress;
+    }
+
+    /**
+     * Set the strategies outgoing connects race. Attempts start staggerMs
+     * apart, the strategy expected to connect fastest first, and a failed
+     * attempt starts the next one straight away. The first socket to
+     * connect is kept and the others are closed. The secure flag passed to
+     * connect() is ignored while strategies are set.
+     * @param strategies The strategies, eg. SECURE, INSECURE and
+     *                   ConnectStrategy.channel(1), or null (default) to
+     *                   connect one socket chosen by the secure flag
+     * @param staggerMs The delay between starting attempts, 0 to start
+     *                  them all at once
+     */
+    public synchronized void setConnectStrategies(List<ConnectStrategy> strategies, long staggerMs) {
+        this.connectStrategies = strategies == null ? null : new ArrayList<ConnectStrategy>(strategies);
+        this.connectStaggerMs = staggerMs;
+    }
+
+    public synchronized List<ConnectStrategy> getConnectStrategies() {
+        return connectStrategies;
+    }
+
+    /**
+     * @return How each connect strategy has done, used to order the race
+     */
+    public ConnectStats getConnectStats() {
+        return connectStats;
+    }
+
+    /**
+     * @return The live counters for a device, kept across reconnects.
+     *         Use snapshot() for a copy that no longer changes.
+     */
+    public BluetoothStats getStats(String address) {
+        synchronized(stats) {
+            BluetoothStats s = stats.get(address);
+            if(s == null) {
+                s = new BluetoothStats();
+                stats.put(address, s);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * @return The sum of the counters of every device, as a snapshot
+     */
+    public BluetoothStats getStats() {
+        BluetoothStats total = new BluetoothStats();
+        synchronized(stats) {
+            for(BluetoothStats s : stats.values()) {
+                total.add(s);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Zero the counters of every device.
+     */
+    public void resetStats() {
+        synchronized(stats) {
+            for(BluetoothStats s : stats.values()) {
+                s.reset();
+            }
+        }
+    }
+
+    private final Runnable reconnectTask = new Runnable() {
+            public void run() {
+                reconnect();
+            }
+        };
+
+    /**
+     * Schedule the next attempt to reconnect to the last device, or give up
+     * if the policy is out of attempts.
+     */
+    private synchronized void scheduleReconnect() {
+        if (reconnectPolicy == null || lastAddress == null) return;
+        reconnectAttempt += 1;
+        if (reconnectAttempt > reconnectPolicy.getMaxAttempts()) {
+            DebugLog.w(TAG, "Giving up reconnect to {}", lastAddress);
+            reconnectReport(reconnectAttempt - 1, -1);
+            reconnectAttempt = 0;
+            return;
+        }
+        long delay = reconnectPolicy.getDelay(reconnectAttempt, random);
+        DebugLog.i(TAG, "Reconnect attempt {} in {}ms", reconnectAttempt, delay);
+        reconnectFuture = getScheduler().schedule(reconnectTask, delay, TimeUnit.MILLISECONDS);
+        getStats(lastAddress).reconnects.incrementAndGet();
+        reconnectReport(reconnectAttempt, delay);
+    }
+
+    private synchronized void reconnect() {
+        reconnectFuture = null;
+        if (reconnectAttempt == 0 || state == STATE_NONE) return;
+        if (multiPeer() ? connections.containsKey(lastAddress) : state == STATE_CONNECTED) {
+            // The device came back on its own, or another one connected
+            reconnectAttempt = 0;
+            return;
+        }
+        reconnecting = true;
+        try {
+            if (!connectToAddress(lastAddress, lastSecure)) {
+                scheduleReconnect();
+            }
+        } finally {
+            reconnecting = false;
+        }
+    }
+
+    private void cancelReconnect() {
+        reconnectAttempt = 0;
+        if (reconnectFuture != null) {
+            reconnectFuture.cancel(false);
+            reconnectFuture = null;
+        }
+    }
+
+    /**
+     * Report a reconnect attempt to the client.
+     * @param delay The delay before the attempt, or -1 when giving up
+     */
+    private void reconnectReport(int attempt, long delay) {
+        BluetoothEventListener listener = events;
+        if(listener != null) listener.reconnecting(lastAddress, attempt, delay);
+        if(client != null && handler != null) {
+            Message msg = handler.obtainMessage(BluetoothClient.MESSAGE_RECONNECT, attempt, (int)delay);
+            Bundle bundle = new Bundle();
+            bundle.putString(BluetoothClient.DEVICE_ADDRESS, lastAddress);
+            msg.setData(bundle);
+            handler.sendMessage(msg);
+        }
+    }
+
+    /**
+     * Start the service, registering what the transport needs from the
+     * system first, ie. the bonded device index of an RfcommTransport, so
+     * connectToAddress() doesn't ask the adapter for the bonded devices.
+     */
+    public void start(Context context) {
+        if (transport instanceof RfcommTransport) {
+            ((RfcommTransport) transport).getBondedDeviceCache().register(context);
+        }
+        start();
+    }
+
     /**
      * Start the service. Specifically start AcceptThread to begin a
      * session in listening (server) mode. Called by the Activity onResume() */
     public synchronized void start() {
-        DebugLog.e(TAG, "bluetooth server start");
+        DebugLog.d(TAG, "bluetooth server start");
 
-        cancelConnectThreads();
+        if (multiPeer()) {
+            // Keep the connected devices, only drop a pending connect
+            if (connectThread != null) {connectThread.cancel(); connectThread = null;}
+        } else {
+            cancelConnectThreads();
+        }
 
-        setState(STATE_LISTEN);
+        setState(connections.isEmpty() ? STATE_LISTEN : STATE_CONNECTED);
 
         // Start the thread to listen on a BluetoothServerSocket
         if (secureAcceptThread == null) {
             secureAcceptThread = new AcceptThread(true);
-            secureAcceptThread.start();
+            if (!secureAcceptThread.start()) {
+                secureAcceptThread.cancel();
+                secureAcceptThread = null;
+            }
         }
         if (insecureAcceptThread == null) {
             insecureAcceptThread = new AcceptThread(false);
-            insecureAcceptThread.start();
+            if (!insecureAcceptThread.start()) {
+                insecureAcceptThread.cancel();
+                insecureAcceptThread = null;
+            }
         }
     }
 
@@ -149,21 +676,42 @@ public class BluetoothService {
      * @param device  The BluetoothDevice to connect
      * @param secure Socket Security type - Secure (true) , Insecure (false)
      */
-    public synchronized void connect(BluetoothDevice device, boolean secure) {
-        DebugLog.e(TAG, "connect to: " + device);
+    public void connect(BluetoothDevice device, boolean secure) {
+        connect(device.getAddress(), secure);
+    }
 
-        // Cancel any thread attempting to make a connection
-        if (state == STATE_CONNECTING) {
-            if (connectThread != null) {connectThread.cancel(); connectThread = null;}
+    /**
+     * Start the ConnectThread to initiate a connection to a remote device.
+     * @param address  The address of the device to connect
+     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     */
+    public synchronized void connect(String address, boolean secure) {
+        DebugLog.i(TAG, "connect to: {}", address);
+
+        if (!reconnecting) {
+            // An explicit connect replaces any reconnect in progress
+            cancelReconnect();
+            lastAddress = address;
+            lastSecure = secure;
         }
 
+        // Cancel any thread attempting to make a connection
+        if (connectThread != null) {connectThread.cancel(); connectThread = null;}
+
         // Cancel any thread currently running a connection
-        if (connectedThread != null) {connectedThread.cancel(); connectedThread = null;}
+        if (multiPeer()) {
+            disconnectLocked(address);
+        } else {
+            cancelConnections();
+        }
 
         // Start the thread to connect with the given device
-        connectThread = new ConnectThread(device, secure);
-        connectThread.start();
-        setState(STATE_CONNECTING);
+        connectThread = new ConnectThread(address, secure);
+        if (connections.isEmpty()) setState(STATE_CONNECTING);
+        if (!connectThread.start()) {
+            connectThread.cancel();
+            connectionFailed(connectThread);
+        }
     }
 
     /**
@@ -173,74 +721,131 @@ public class BluetoothService {
      * @return true if paired device with matching BDADDR was found, false otherwise
      */
     public boolean connectToAddress(String bdaddr, boolean secure) {
-        if(bdaddr == null) return false;
-        Set<BluetoothDevice> devices = btAdapter.getBondedDevices();
-        for(BluetoothDevice device : devices) {
-            DebugLog.e(TAG, device.getAddress());
-            if(bdaddr.equals(device.getAddress())) {
-                connect(device, secure);
-                return true;
-            }
-        }
-        return false;
+        if(bdaddr == null || !transport.hasPeer(bdaddr)) return false;
+        connect(bdaddr, secure);
+        return true;
     }
 
     /**
      * Start the ConnectedThread to begin managing a Bluetooth connection
-     * @param socket  The BluetoothSocket on which the connection was made
-     * @param device  The BluetoothDevice that has been connected
+     * @param socket  The TransportSocket on which the connection was made
+     * @param socketType  The socket security type, for logging
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-                                       device, final String socketType) {
-        DebugLog.e(TAG, "connected, Socket Type:" + socketType);
+    public synchronized void connected(TransportSocket socket, final String socketType) {
+        DebugLog.i(TAG, "connected, Socket Type: {}", socketType);
 
-        cancelConnectThreads();
-        cancelAcceptThreads();
+        if (multiPeer()) {
+            // Replace any old connection to the same device
+            disconnectLocked(socket.getRemoteAddress());
+        } else {
+            cancelConnectThreads();
+            cancelAcceptThreads();
+        }
 
         // Start the thread to manage the connection and perform transmissions
         connectedThread = new ConnectedThread(socket, socketType);
-        connectedThread.start();
+        ConnectedThread r = connectedThread;
+        connections.put(r.mmAddress, r);
+        r.stats.connects.incrementAndGet();
+        if (reconnectAttempt > 0 && !r.mmAddress.equals(lastAddress)) {
+            cancelReconnect();
+        }
+        reconnectAttempt = 0;
+        lastAddress = r.mmAddress;
+        lastSecure = "Secure".equals(socketType);
         setState(STATE_CONNECTED);
+        peerStateChanged(r.mmAddress, STATE_CONNECTED);
+        if (!r.start()) {
+            r.closeSocket();
+            connectionLost(r);
+            return;
+        }
+        for (TransferManager.Outgoing t : transfers.pending(r.mmAddress)) {
+            startUpload(r, t);
+        }
 
+        BluetoothEventListener listener = events;
+        if(listener != null) listener.deviceConnected(socket.getRemoteAddress(), socket.getRemoteName());
         // Send the name of the connected device back to the UI Activity
-        if(client != null) {
+        if(client != null && handler != null) {
             Message msg = handler.obtainMessage(BluetoothClient.MESSAGE_DEVICE_NAME);
             Bundle bundle = new Bundle();
-            bundle.putString(BluetoothClient.DEVICE_ADDRESS, device.getAddress());
-            bundle.putString(BluetoothClient.DEVICE_NAME, device.getName());
+            bundle.putString(BluetoothClient.DEVICE_ADDRESS, socket.getRemoteAddress());
+            bundle.putString(BluetoothClient.DEVICE_NAME, socket.getRemoteName());
             msg.setData(bundle);
             handler.sendMessage(msg);
         }
     }
 
+    /**
+     * Whether an accepted connection should be kept.
+     */
+    private synchronized boolean acceptConnection() {
+        if (multiPeer()) {
+            return state != STATE_NONE && connections.size() < maxConnections;
+        }
+        return state == STATE_LISTEN || state == STATE_CONNECTING;
+    }
+
     /**
      * Stop all threads
      */
     public synchronized void stop() {
-        DebugLog.e(TAG, "stop");
+        DebugLog.d(TAG, "stop");
+        cancelReconnect();
         cancelConnectThreads();
         cancelAcceptThreads();
         setState(STATE_NONE);
     }
 
     /**
-     * Cancel the connection pending thread and the connected thread
+     * Close the connection to one device.
+     * @param address The address of the device
+     */
+    public synchronized void disconnect(String address) {
+        if (address.equals(lastAddress)) cancelReconnect();
+        if (disconnectLocked(address) && connections.isEmpty() && state == STATE_CONNECTED) {
+            setState(secureAcceptThread != null || insecureAcceptThread != null ? STATE_LISTEN : STATE_NONE);
+        }
+    }
+
+    private boolean disconnectLocked(String address) {
+        ConnectedThread r = connections.remove(address);
+        if (r == null) return false;
+        r.cancel();
+        if (r == connectedThread) connectedThread = newestConnection();
+        peerStateChanged(address, STATE_NONE);
+        return true;
+    }
+
+    private ConnectedThread newestConnection() {
+        ConnectedThread newest = null;
+        for (ConnectedThread r : connections.values()) newest = r;
+        return newest;
+    }
+
+    /**
+     * Cancel the connection pending thread and the connected threads
      */
-    public void cancelConnectThreads() {
+    public synchronized void cancelConnectThreads() {
         if (connectThread != null) {
             connectThread.cancel();
             connectThread = null;
         }
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        cancelConnections();
+    }
+
+    private void cancelConnections() {
+        for (String address : new ArrayList<String>(connections.keySet())) {
+            disconnectLocked(address);
         }
+        connectedThread = null;
     }
 
     /**
      * Cancel the secure and insecure accept thread.
      */
-    public void cancelAcceptThreads() {
+    public synchronized void cancelAcceptThreads() {
         if (secureAcceptThread != null) {
             secureAcceptThread.cancel();
             secureAcceptThread = null;
@@ -252,18 +857,93 @@ public class BluetoothService {
     }
 
     /**
-     * Send a BluetoothMessage
+     * Find the connection to a device.
+     * @param address The address of the device, or null for the most
+     *                recently connected device
+     * @return The connection, or null if the device isn't connected
+     */
+    private synchronized ConnectedThread connection(String address) {
+        if (address == null) {
+            return state == STATE_CONNECTED ? connectedThread : null;
+        }
+        return connections.get(address);
+    }
+
+    /**
+     * Send a request to the most recently connected device.
+     *
+     * @see #request(String, BluetoothMessage, long)
+     */
+    public Future<BluetoothMessage> request(BluetoothMessage msg, long timeoutMs) {
+        return request(null, msg, timeoutMs);
+    }
+
+    /**
+     * Send a request to one device and get a future for its reply. The
+     * message is tagged with a correlation id, which the peer's reply()
+     * copies, so any number of requests can be in flight at once and
+     * replies may come back in any order. Replies complete their futures
+     * and are not passed to the client.
+     *
+     * Needs version 1 frames and a peer that decodes frames.
+     *
+     * @param address The address of the device, or null for the most
+     *                recently connected device
+     * @param msg The request
+     * @param timeoutMs How long to wait for the reply, or 0 for no limit
+     * @return The reply future. get() throws an ExecutionException
+     *         wrapping a TimeoutException when the reply is late, or an
+     *         IOException when the device isn't connected or the
+     *         connection is lost.
+     */
+    public Future<BluetoothMessage> request(String address, BluetoothMessage msg, long timeoutMs) {
+        ConnectedThread r = connection(address);
+        if (r == null) {
+            ReplyTracker.ReplyFuture future = new ReplyTracker().add();
+            future.complete(null, new IOException("Not connected"));
+            return future;
+        }
+        return r.request(msg, timeoutMs);
+    }
+
+    /**
+     * Answer a request received in FrameReceiver.receivedFrame(), ie. a
+     * frame with FrameCodec.FLAG_REQUEST.
+     */
+    public void reply(Frame request, BluetoothMessage reply) {
+        reply(request.address, request.correlation, reply);
+    }
+
+    /**
+     * Answer a request from one device. The reply is sent as a version 1
+     * frame whatever setFrameVersion() is, since only those carry the
+     * correlation id, and the requester decodes them.
+     * @param correlation The request frame's correlation id
+     */
+    public void reply(String address, int correlation, BluetoothMessage reply) {
+        ConnectedThread r = connection(address);
+        if (r != null) r.send(reply, FrameCodec.FLAG_REPLY, correlation);
+    }
+
+    /**
+     * Send a BluetoothMessage to the most recently connected device
      *
      * @param msg The BluetoothMessage to send
      * @see ConnectedThread#send(BluetoothMessage)
      */
     public void send(BluetoothMessage msg) {
-        ConnectedThread r;
-        synchronized(this) {
-            if (state != STATE_CONNECTED) return;
-            r = connectedThread;
-        }
-        r.send(msg);
+        send(null, msg);
+    }
+
+    /**
+     * Send a BluetoothMessage to one device
+     *
+     * @param address The address of the device
+     * @param msg The BluetoothMessage to send
+     */
+    public void send(String address, BluetoothMessage msg) {
+        ConnectedThread r = connection(address);
+        if (r != null) r.send(msg);
     }
 
     /**
@@ -273,12 +953,46 @@ public class BluetoothService {
      * @see ConnectedThread#write(int)
      */
     public void write(int cmd) {
-        ConnectedThread r;
-        synchronized (this) {
-            if (state != STATE_CONNECTED) return;
-            r = connectedThread;
-        }
-        r.write(cmd);
+        write(null, cmd, false);
+    }
+
+    /**
+     * Write a single byte to the connected bluetooth stream.
+     *
+     * @param cmd The command to write. Only the LSB of the int is used.
+     * @param urgent Flush straight away even if writes are coalesced
+     */
+    public void write(int cmd, boolean urgent) {
+        write(null, cmd, urgent);
+    }
+
+    /**
+     * Write a single byte to one device.
+     *
+     * @param address The address of the device
+     * @param cmd The command to write. Only the LSB of the int is used.
+     * @param urgent Flush straight away even if writes are coalesced
+     */
+    public void write(String address, int cmd, boolean urgent) {
+        ConnectedThread r = connection(address);
+        if (r != null) r.write(cmd, urgent);
+    }
+
+    /**
+     * Write out any data held back by write coalescing.
+     */
+    public void flush() {
+        flush(null);
+    }
+
+    /**
+     * Write out any data held back by write coalescing for one device.
+     *
+     * @param address The address of the device
+     */
+    public void flush(String address) {
+        ConnectedThread r = connection(address);
+        if (r != null) r.flush();
     }
 
     /**
@@ -288,12 +1002,18 @@ public class BluetoothService {
      * @see ConnectedThread#write(InputStream)
      */
     public void write(InputStream stream) {
-        ConnectedThread r;
-        synchronized (this) {
-            if (state != STATE_CONNECTED) return;
-            r = connectedThread;
-        }
-        r.write(stream);
+        write(null, stream);
+    }
+
+    /**
+     * Write the contents of an InputStream to one device
+     *
+     * @param address The address of the device
+     * @param stream The input stream to write
+     */
+    public void write(String address, InputStream stream) {
+        ConnectedThread r = connection(address);
+        if (r != null) r.write(stream);
     }
 
     /**
@@ -303,54 +1023,240 @@ public class BluetoothService {
      * @see BluetoothService#write(byte[], int)
      */
     public void write(byte[] out) {
-        write(out, out.length);
+        write(null, out, out.length);
+    }
+
+    /**
+     * Write len bytes from a byte array to the connected bluetooth stream.
+     *
+     * @param out The byte array to send
+     * @param len The number of bytes to send
+     * @see ConnectedThread#write(byte[])
+     */
+    public void write(byte[] out, int len) {
+        write(null, out, len);
+    }
+
+    /**
+     * Write len bytes from a byte array to one device.
+     *
+     * @param address The address of the device
+     * @param out The byte array to send
+     * @param len The number of bytes to send
+     */
+    public void write(String address, byte[] out, int len) {
+        ConnectedThread r = connection(address);
+        if (r != null) r.write(out, len);
+    }
+
+    /**
+     * Send the contents of an InputStream to one device on a logical
+     * channel, as a series of messages of up to
+     * ChannelScheduler.FRAGMENT_SIZE bytes ending with an empty one.
+     * Unlike write(InputStream), this lets messages on heavier channels
+     * go in between. Needs version 1 frames.
+     *
+     * @param address The address of the device, or null for the most
+     *                recently connected device
+     * @param channel The channel to send on
+     * @param cmd The command of each message
+     * @param stream The input stream to send
+     */
+    public void sendStream(String address, int channel, int cmd, InputStream stream) {
+        ConnectedThread r = connection(address);
+        if (r != null) r.sendStream(channel, cmd, stream);
+    }
+
+    /**
+     * Send the data of source to a device as a resumable transfer. If the
+     * connection drops, the transfer picks up where the device's last
+     * checkpoint left off once it reconnects. Progress and completion are
+     * reported with MESSAGE_TRANSFER.
+     *
+     * Both clients need to decode frames to see each other's transfer
+     * messages, so they should implement TransferReceiver or FrameReceiver.
+     *
+     * @param address The address of the device, or null for the most
+     *                recently connected device
+     * @param id Identifies the transfer to the receiver, which resumes an
+     *           unfinished transfer with the same id from its own
+     *           checkpoint. Once one completes the id can be used again,
+     *           the next transfer with it starting from 0.
+     * @param source The data to send
+     * @return false if there is no device to send to
+     */
+    public boolean startTransfer(String address, int id, TransferSource source) {
+        ConnectedThread r;
+        synchronized (this) {
+            r = connection(address);
+            if (address == null) {
+                if (r == null) return false;
+                address = r.mmAddress;
+            }
+        }
+        TransferManager.Outgoing t = transfers.add(address, id, source);
+        if (r != null) startUpload(r, t);
+        return true;
+    }
+
+    /**
+     * Stop sending a transfer. The receiver keeps its checkpoint.
+     * @return false if there was no such transfer
+     */
+    public boolean cancelTransfer(String address, int id) {
+        return transfers.cancel(address, id);
+    }
+
+    /**
+     * @return How much of a transfer the device has acked, or -1 if the
+     *         transfer is complete or unknown
+     */
+    public long getTransferOffset(String address, int id) {
+        return transfers.getAcked(address, id);
+    }
+
+    private void startUpload(final ConnectedThread r, final TransferManager.Outgoing t) {
+        ServiceTask task = new ServiceTask() {
+                protected void runTask() {
+                    setName("TransferThread");
+                    try {
+                        transfers.upload(t, r);
+                    } catch (IOException e) {
+                        DebugLog.w(TAG, "Transfer {} stopped - {}", t.id, e.getMessage());
+                    }
+                }
+            };
+        if (!task.start()) {
+            DebugLog.e(TAG, "No thread for transfer {}", t.id);
+        }
+    }
+
+    /**
+     * Tell the client that one device connected or disconnected.
+     */
+    private void peerStateChanged(String address, int peerState) {
+        BluetoothEventListener listener = events;
+        if(listener != null) listener.peerStateChanged(address, peerState);
+        if(client != null && handler != null) {
+            Message msg = handler.obtainMessage(BluetoothClient.MESSAGE_PEER_STATE_CHANGE, peerState, -1);
+            Bundle bundle = new Bundle();
+            bundle.putString(BluetoothClient.DEVICE_ADDRESS, address);
+            msg.setData(bundle);
+            handler.sendMessage(msg);
+        }
     }
 
     /**
-     * Write len bytes from a byte array to the connected bluetooth stream.
-     *
-     * @param out The byte array to send
-     * @param len The number of bytes to send
-     * @see ConnectedThread#write(byte[])
+     * Go back to listening after a failed or lost connection. With multiple
+     * devices the other connections, and any connection in progress, are
+     * left running.
      */
-    public void write(byte[] out, int len) {
-        ConnectedThread r;
-        synchronized (this) {
-            if (state != STATE_CONNECTED) return;
-            r = connectedThread;
+    private synchronized void restart() {
+        if (!multiPeer()) {
+            start();
+            return;
+        }
+        if (secureAcceptThread == null || insecureAcceptThread == null) {
+            start();
+        } else if (connections.isEmpty()) {
+            setState(connectThread != null ? STATE_CONNECTING : STATE_LISTEN);
         }
-        r.write(out, len);
     }
 
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
      */
-    private void connectionFailed() {
-        if(client != null) {
+    private void connectionFailed(ConnectThread failed) {
+        boolean retry;
+        synchronized (this) {
+            if (connectThread == failed) connectThread = null;
+            retry = reconnectAttempt > 0 && failed.mmAddress.equals(lastAddress);
+        }
+        if(retry) {
+            // Reported by MESSAGE_RECONNECT instead
+            restart();
+            scheduleReconnect();
+            return;
+        }
+        BluetoothEventListener listener = events;
+        if(listener != null) listener.connectionFailed(failed.mmAddress);
+        if(client != null && handler != null) {
             Message msg = handler.obtainMessage(BluetoothClient.MESSAGE_TOAST);
             Bundle bundle = new Bundle();
             bundle.putString(BluetoothClient.TOAST, "Unable to connect device");
+            bundle.putString(BluetoothClient.DEVICE_ADDRESS, failed.mmAddress);
             msg.setData(bundle);
             handler.sendMessage(msg);
         }
 
         // Start the service over to restart listening mode
-        BluetoothService.this.start();
+        restart();
     }
 
     /**
      * Indicate that the connection was lost and notify the UI Activity.
      */
-    private void connectionLost() {
-        if(client != null) {
+    private void connectionLost(ConnectedThread lost) {
+        synchronized (this) {
+            if (connections.get(lost.mmAddress) != lost) return;
+            connections.remove(lost.mmAddress);
+            if (lost == connectedThread) connectedThread = newestConnection();
+        }
+        peerStateChanged(lost.mmAddress, STATE_NONE);
+        BluetoothEventListener listener = events;
+        if(listener != null) listener.connectionLost(lost.mmAddress);
+        if(client != null && handler != null) {
             Message msg = handler.obtainMessage(BluetoothClient.MESSAGE_TOAST);
             Bundle bundle = new Bundle();
             bundle.putString(BluetoothClient.TOAST, "Device connection was lost");
+            bundle.putString(BluetoothClient.DEVICE_ADDRESS, lost.mmAddress);
             msg.setData(bundle);
             handler.sendMessage(msg);
         }
         // Start the service over to restart listening mode
-        BluetoothService.this.start();
+        restart();
+        synchronized (this) {
+            if (reconnectAttempt == 0 && lost.mmAddress.equals(lastAddress)) {
+                scheduleReconnect();
+            }
+        }
+    }
+
+    /**
+     * Base of the service's threads. Each one runs as a task on the
+     * service executor, under its own thread name while it runs.
+     */
+    private abstract class ServiceTask implements Runnable {
+
+        /**
+         * Submit the task to the executor.
+         * @return false if the executor has no room for it
+         */
+        public boolean start() {
+            try {
+                getExecutor().execute(this);
+                return true;
+            } catch (RejectedExecutionException e) {
+                DebugLog.e(TAG, "Executor rejected {}", getClass().getSimpleName());
+                return false;
+            }
+        }
+
+        public final void run() {
+            Thread thread = Thread.currentThread();
+            String poolName = thread.getName();
+            try {
+                runTask();
+            } finally {
+                thread.setName(poolName);
+            }
+        }
+
+        protected void setName(String name) {
+            Thread.currentThread().setName(name);
+        }
+
+        protected abstract void runTask();
     }
 
     /**
@@ -358,37 +1264,34 @@ public class BluetoothService {
      * like a server-side client. It runs until a connection is accepted
      * (or until cancelled).
      */
-    private class AcceptThread extends Thread {
+    private class AcceptThread extends ServiceTask {
         // The local server socket
-        private BluetoothServerSocket mmServerSocket;
+        private TransportServerSocket mmServerSocket;
         private String mSocketType;
 
         public AcceptThread(boolean secure) {
-            BluetoothServerSocket tmp = null;
+            TransportServerSocket tmp = null;
             mSocketType = secure ? "Secure":"Insecure";
 
             // Create a new listening server socket
             try {
-                if (secure) {
-                    tmp = btAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, UUID_SECURE);
-                } else {
-                    tmp = btAdapter.listenUsingInsecureRfcommWithServiceRecord(NAME_INSECURE, UUID_INSECURE);
-                }
+                tmp = transport.listen(secure);
             } catch (IOException e) {
-                DebugLog.e(TAG, "Socket Type: " + mSocketType + "listen() failed "+e.getMessage());
+                DebugLog.e(TAG, "Socket Type: {} listen() failed {}", mSocketType, e.getMessage());
             }
             mmServerSocket = tmp;
         }
 
-        public void run() {
-            DebugLog.e(TAG, "Socket Type: " + mSocketType + " BEGIN mAcceptThread" + this);
+        protected void runTask() {
+            DebugLog.d(TAG, "Socket Type: {} BEGIN mAcceptThread {}", mSocketType, this);
             setName("AcceptThread" + mSocketType);
 
-            BluetoothSocket socket = null;
+            TransportSocket socket = null;
 
-            DebugLog.e(TAG, "Made it to run thread");
-            // Listen to the server socket if we're not connected
-            while (state != STATE_CONNECTED) {
+            DebugLog.v(TAG, "Made it to run thread");
+            // Listen to the server socket if we're not connected, or for
+            // as long as the service is running with multiple devices
+            while (multiPeer() ? mmServerSocket != null : state != STATE_CONNECTED) {
                 try {
                     // This is a blocking call and will only return on a
                     // successful connection or an exception
@@ -396,37 +1299,33 @@ public class BluetoothService {
                         socket = mmServerSocket.accept();
                     }
                 } catch (IOException e) {
-                    DebugLog.e(TAG, "Socket Type: " + mSocketType + "accept() failed: "+e.getMessage());
+                    DebugLog.e(TAG, "Socket Type: {} accept() failed: {}", mSocketType, e.getMessage());
                     break;
                 }
 
                 // If a connection was accepted
                 if (socket != null) {
-                    synchronized (this) {
-                        switch (state) {
-                        case STATE_LISTEN:
-                        case STATE_CONNECTING:
+                    synchronized (BluetoothService.this) {
+                        if (acceptConnection()) {
                             // Situation normal. Start the connected thread.
-                            connected(socket, socket.getRemoteDevice(), mSocketType);
-                            break;
-                        case STATE_NONE:
-                        case STATE_CONNECTED:
+                            connected(socket, mSocketType);
+                        } else {
                             // Either not ready or already connected. Terminate new socket.
                             try {
                                 socket.close();
                             } catch (IOException e) {
-                                Log.e(TAG, "Could not close unwanted socket", e);
+                                DebugLog.e(TAG, "Could not close unwanted socket", e);
                             }
-                            break;
                         }
                     }
+                    socket = null;
                 }
             }
-            DebugLog.e(TAG, "END mAcceptThread, socket Type: " + mSocketType);
+            DebugLog.d(TAG, "END mAcceptThread, socket Type: {}", mSocketType);
         }
 
         public void cancel() {
-            DebugLog.e(TAG, "Socket Type" + mSocketType + "cancel " + this);
+            DebugLog.d(TAG, "Socket Type {} cancel {}", mSocketType, this);
             if (mmServerSocket != null) {
                 try {mmServerSocket.close();} catch (Exception e) {}
                 mmServerSocket = null;
@@ -440,72 +1339,99 @@ public class BluetoothService {
      * with a device. It runs straight through; the connection either
      * succeeds or fails.
      */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+    private class ConnectThread extends ServiceTask {
+        private TransportSocket mmSocket;
+        private final String mmAddress;
+        private final ConnectRace mmRace;
         private String mSocketType;
+        private volatile boolean cancelled;
 
-        public ConnectThread(BluetoothDevice device, boolean secure) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        public ConnectThread(String address, boolean secure) {
+            mmAddress = address;
+            TransportSocket tmp = null;
             mSocketType = secure ? "Secure" : "Insecure";
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
-            DebugLog.e(TAG, "Connect thread constructor");
+            DebugLog.v(TAG, "Connect thread constructor");
+            if (connectStrategies != null) {
+                // Sockets are created by the race once the thread runs
+                mmRace = new ConnectRace(transport, address, connectStrategies, connectStaggerMs,
+                                         connectStats, getExecutor(), getScheduler());
+                mSocketType = "Race";
+                return;
+            }
+            mmRace = null;
+
+            // Get a TransportSocket for a connection with the
+            // given device
             try {
-                if (secure) {
-                    tmp = device.createRfcommSocketToServiceRecord(UUID_SECURE);
-                    DebugLog.e(TAG, "Created secure socket to "+UUID_SECURE);
-                } else {
-                    tmp = device.createInsecureRfcommSocketToServiceRecord(UUID_INSECURE);
-                    //Method m = device.getClass().getMethod("createRfcommSocket", new Class[] {int.class});
-                    //tmp = (BluetoothSocket) m.invoke(device, 1);
-                    DebugLog.e(TAG, "Created insecure socket to "+UUID_SECURE);
-                }
+                tmp = transport.createSocket(address, secure);
             } catch (Exception e) {
                 DebugLog.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
             }
             mmSocket = tmp;
         }
 
-        public void run() {
-            DebugLog.e(TAG, "BEGIN connectThread SocketType:" + mSocketType);
+        protected void runTask() {
+            DebugLog.d(TAG, "BEGIN connectThread SocketType: {}", mSocketType);
             setName("ConnectThread" + mSocketType);
+            long start = System.nanoTime();
 
-            // Always cancel discovery because it will slow down a connection
-            btAdapter.cancelDiscovery();
-
-            // Make a connection to the BluetoothSocket
-            try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
-            } catch (IOException e) {
-                // Close the socket
-                DebugLog.e(TAG, "Failed to connect - "+e.getMessage());
+            if (mmRace != null) {
                 try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() "+mSocketType+" socket during connection failure", e2);
+                    mmSocket = mmRace.connect();
+                    mSocketType = mmRace.getWinningStrategy().getName();
+                } catch (IOException e) {
+                    DebugLog.w(TAG, "Failed to connect - {}", e.getMessage());
+                    if (!cancelled) connectionFailed(this);
+                    return;
                 }
-                connectionFailed();
+            } else if (mmSocket == null) {
+                connectionFailed(this);
                 return;
+            } else {
+                // Make a connection to the TransportSocket
+                try {
+                    // This is a blocking call and will only return on a
+                    // successful connection or an exception
+                    mmSocket.connect();
+                } catch (IOException e) {
+                    // Close the socket
+                    DebugLog.w(TAG, "Failed to connect - {}", e.getMessage());
+                    try {
+                        mmSocket.close();
+                    } catch (IOException e2) {
+                        DebugLog.e(TAG, "unable to close() "+mSocketType+" socket during connection failure", e2);
+                    }
+                    if (!cancelled) connectionFailed(this);
+                    return;
+                }
             }
 
             // Reset the ConnectThread because we're done
             synchronized (BluetoothService.this) {
+                if (connectThread != this) {
+                    // Cancelled while connecting
+                    try {mmSocket.close();} catch (IOException e) {}
+                    return;
+                }
                 connectThread = null;
+                getStats(mmAddress).connectTime.record(System.nanoTime() - start);
+                // Start the connected thread
+                connected(mmSocket, mSocketType);
             }
-            // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
         }
 
         public void cancel() {
+            cancelled = true;
+            if (mmRace != null) {
+                mmRace.cancel();
+                return;
+            }
+            if (mmSocket == null) return;
             try {
                 mmSocket.close();
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
+                DebugLog.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
             }
         }
     }
@@ -513,107 +1439,679 @@ public class BluetoothService {
     /**
      * This thread runs during a connection with a remote device.
      * It handles all incoming and outgoing transmissions.
+     *
+     * Incoming data is read in bulk. A client implementing FrameReceiver
+     * gets each decoded frame, and a client implementing BulkReceiver gets
+     * each read as one slice of a reusable buffer. Other clients get the
+     * per-byte receivedData(int, InputStream) callback, served from a
+     * buffered stream so each byte doesn't cost a socket read.
      */
-    private class ConnectedThread extends Thread {
-        private BluetoothSocket mmSocket;
+    private class ConnectedThread extends ServiceTask implements TransferManager.ControlChannel {
+        private TransportSocket mmSocket;
+        private final String mmAddress;
+        // The encoder's lock also keeps writes from different threads whole
+        private final FrameEncoder encoder = new FrameEncoder();
+        private final FrameDecoder decoder = new FrameDecoder();
+        private final WriterThread writer;
         private InputStream mmInStream;
-        private OutputStream mmOutStream;
+        private volatile OutputStream mmOutStream;
+        private final CoalescingOutputStream coalescer;
+        private final FlowControl flow;
+        private final CompressionStage compression;
+        private final FragmentAssembler assembler = new FragmentAssembler();
+        private final ReplyTracker replies = new ReplyTracker();
+        final BluetoothStats stats;
+        private final int chunkSize;
+        private final WireTraceRecorder trace;
+        private final int traceId;
+        // The thread running runTask(), which queues its control frames
+        private volatile Thread reader;
         volatile boolean running = true;
 
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
+        private final FrameReceiver frameHandler = new FrameReceiver() {
+                public void receivedFrame(Frame frame) throws IOException {
+                    handleFrame(frame);
+                }
+            };
+
+        public ConnectedThread(TransportSocket socket, String socketType) {
+            DebugLog.d(TAG, "create ConnectedThread: {}", socketType);
             mmSocket = socket;
+            mmAddress = socket.getRemoteAddress();
+            decoder.getFrame().address = mmAddress;
+            stats = getStats(mmAddress);
+            chunkSize = BluetoothService.this.chunkSize;
+            trace = wireTrace;
+            traceId = trace == null ? -1 : trace.opened(mmAddress);
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the TransportSocket input and output streams
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmpIn = new CountingInputStream(socket.getInputStream(), stats);
+                tmpOut = new CountingOutputStream(socket.getOutputStream(), stats);
+                if(trace != null) {
+                    tmpIn = new TracingInputStream(tmpIn, trace, traceId);
+                    tmpOut = new TracingOutputStream(tmpOut, trace, traceId);
+                }
             } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
+                DebugLog.e(TAG, "temp sockets not created", e);
+            }
+
+            int packetSize = coalesceSize;
+            if(packetSize > 0 && tmpOut != null) {
+                coalescer = new CoalescingOutputStream(tmpOut, packetSize, coalesceDelayMs, getScheduler());
+                tmpOut = coalescer;
+            } else {
+                coalescer = null;
             }
 
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
+            flow = new FlowControl(flowWindow);
+            compression = new CompressionStage(compressThreshold, compressDictionary);
+            // A sender waiting for credit must not hold up the reader, which the credit comes in on
+            writer = queuedWrites || flow.isSending() ? new WriterThread(this) : null;
+        }
+
+        @Override
+        public boolean start() {
+            if (writer != null && !writer.start()) return false;
+            return super.start();
         }
 
-        public void run() {
-            DebugLog.e(TAG, "BEGIN connectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
-            Bitmap bitmap;
+        protected void runTask() {
+            DebugLog.d(TAG, "BEGIN connectedThread");
+            setName("ConnectedThread");
+            reader = Thread.currentThread();
+            BufferedInputStream in = new BufferedInputStream(mmInStream, chunkSize);
+            byte[] buffer = new byte[chunkSize];
+
+            if(compression.isSending()) {
+                try {
+                    sendProfile(BluetoothClient.REQUEST_PROFILE);
+                } catch(IOException e) {
+                    DebugLog.e(TAG, "Exception sending profile {}", e.getMessage());
+                }
+            }
 
             // Keep listening to the InputStream while connected
             while (running) {
                 try {
-                    // Let client handle data
-                    int val = mmInStream.read();
-                    if(client != null) {
-                        client.receivedData(val, mmInStream);
-                    } else {}
+                    BluetoothClient c = client;
+                    if(decodesFrames(c)) {
+                        int len = in.read(buffer, 0, buffer.length);
+                        if(len == -1) throw new EOFException("Stream closed");
+                        decoder.feed(buffer, 0, len, frameHandler);
+                        if(flow.shouldAck(in.available() == 0)) {
+                            sendFlowControl(BluetoothClient.LINE_ACK);
+                        }
+                    } else if(c instanceof BulkReceiver) {
+                        // Hand the client everything a single read returns
+                        int len = in.read(buffer, 0, buffer.length);
+                        if(len == -1) throw new EOFException("Stream closed");
+                        ((BulkReceiver)c).receivedData(mmAddress, buffer, 0, len);
+                    } else {
+                        // Let client handle data
+                        int val = in.read();
+                        if(val == -1) throw new EOFException("Stream closed");
+                        if(c != null) {
+                            c.receivedData(val, in);
+                        }
+                    }
                 } catch (IOException e) {
-                    DebugLog.e(TAG, "disconnected", e);
-                    connectionLost();
-                    // Start the service over to restart listening mode
-                    BluetoothService.this.start();
+                    if (running) {
+                        stats.errors.incrementAndGet();
+                        DebugLog.e(TAG, "disconnected", e);
+                        connectionLost(this);
+                    }
                     break;
                 }
             }
+            reader = null;
             closeSocket();
         }
 
+        /**
+         * Whether incoming data is decoded into frames, which the client or
+         * the connection's own protocols need.
+         */
+        private boolean decodesFrames(BluetoothClient c) {
+            return c instanceof FrameReceiver || c instanceof TransferReceiver
+                || flow.isSending() || compression.isSending();
+        }
+
+        /**
+         * Handle a decoded frame. Control frames, sequencing and
+         * compression are dealt with here and the rest are passed to the
+         * client.
+         */
+        private void handleFrame(Frame frame) throws IOException {
+            stats.framesIn.incrementAndGet();
+            if((frame.flags & FrameCodec.FLAG_COMPRESSED) != 0) {
+                compression.inflate(frame);
+            }
+            if((frame.flags & FrameCodec.FLAG_CONTROL) != 0) {
+                if(frame.cmd == BluetoothClient.REQUEST_PROFILE) {
+                    compression.receivedProfile(frame);
+                    sendProfile(BluetoothClient.CLIENT_PROFILE);
+                } else if(frame.cmd == BluetoothClient.CLIENT_PROFILE) {
+                    compression.receivedProfile(frame);
+                } else if(frame.cmd == BluetoothClient.LINE_ACK || frame.cmd == BluetoothClient.LINE_NACK) {
+                    if(flow.isSending()) queueResend(flow.receivedControl(frame));
+                } else if(frame.cmd >= TransferManager.CMD_OFFER && frame.cmd <= TransferManager.CMD_END) {
+                    transfers.receivedControl(this, frame, client);
+                }
+                return;
+            }
+            if((frame.flags & FrameCodec.FLAG_SEQUENCED) != 0) {
+                int action = flow.received(frame.seq);
+                if(action == FlowControl.NACK) {
+                    DebugLog.w(TAG, "Frame {} out of order, sending NACK", frame.seq);
+                    sendFlowControl(BluetoothClient.LINE_NACK);
+                }
+                if(action != FlowControl.DELIVER) return;
+            }
+            if(!assembler.add(frame)) return;
+            if((frame.flags & FrameCodec.FLAG_REPLY) != 0) {
+                if(!replies.replied(frame.correlation, frame.toMessage())) {
+                    DebugLog.w(TAG, "Dropped late reply {}", frame.correlation);
+                }
+                return;
+            }
+            BluetoothClient c = client;
+            if(c instanceof FrameReceiver) {
+                ((FrameReceiver)c).receivedFrame(frame);
+            }
+        }
+
+        /**
+         * Send an ack or NACK for the sequenced frames received so far.
+         */
+        private void sendFlowControl(int cmd) throws IOException {
+            int length = flow.encodeControl();
+            sendControl(cmd, flow.getControlBuffer(), 0, length);
+        }
+
+        private void sendProfile(int cmd) throws IOException {
+            int length = compression.encodeProfile();
+            sendControl(cmd, compression.getProfileBuffer(), 0, length);
+        }
+
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        /**
+         * Encode a version 1 frame, compressed if the peer can inflate it.
+         * Called holding the encoder lock.
+         * @return The length of the frame in the encoder's buffer
+         */
+        private int encodeFrame(int flags, int seq, int channel, int correlation, int cmd,
+                                byte[] payload, int offset, int length) throws IOException {
+            encoder.setVersion(FrameCodec.VERSION_1);
+            if(channel != 0) flags |= FrameCodec.FLAG_CHANNEL;
+            if(compression.shouldCompress(length)) {
+                int compressed = compression.compress(payload, offset, length);
+                if(compressed > 0) {
+                    return encoder.encode(flags | FrameCodec.FLAG_COMPRESSED, seq, channel, correlation, cmd,
+                                          compression.getBuffer(), 0, compressed);
+                }
+            }
+            return encoder.encode(flags, seq, channel, correlation, cmd, payload, offset, length);
+        }
+
+        /**
+         * Send a control frame. The reader queues its frames ahead of
+         * everything else when there is a writer thread, since blocking on
+         * the socket would stop it reading, and two peers with full buffers
+         * would each wait for the other to read. Other threads send
+         * straight away.
+         */
+        public void sendControl(int cmd, byte[] payload, int offset, int length) throws IOException {
+            if(writer != null && Thread.currentThread() == reader) {
+                OutboundQueue.Entry entry = new OutboundQueue.Entry();
+                entry.type = OutboundQueue.TYPE_CONTROL;
+                entry.cmd = cmd;
+                entry.bytes = Arrays.copyOfRange(payload, offset, offset + length);
+                entry.length = length;
+                writer.enqueue(entry);
+                // The writer may be waiting for a credit this frame grants
+                flow.wakeSender();
+            } else {
+                sendControlNow(cmd, payload, offset, length);
+            }
+        }
+
+        private void sendControlNow(int cmd, byte[] payload, int offset, int length) throws IOException {
+            OutputStream out = mmOutStream;
+            if(out == null) throw new IOException("Connection closed");
+            synchronized(encoder) {
+                length = encodeFrame(FrameCodec.FLAG_CONTROL, 0, 0, 0, cmd, payload, offset, length);
+                out.write(encoder.getBuffer(), 0, length);
+            }
+            stats.framesOut.incrementAndGet();
+            endWrite(out, true);
+        }
+
+        /**
+         * Have the writer resend the retained frames from seq on, after a
+         * NACK.
+         */
+        private void queueResend(int seq) {
+            if(seq == flow.getNextSeq()) return;
+            OutboundQueue.Entry entry = new OutboundQueue.Entry();
+            entry.type = OutboundQueue.TYPE_RESEND;
+            entry.seq = seq;
+            writer.enqueue(entry);
+            flow.wakeSender();
+        }
+
+        /**
+         * Resend the retained frames from seq on.
+         */
+        private void resendFrom(int seq) throws IOException {
+            OutputStream out = mmOutStream;
+            if(out == null) return;
+            synchronized(encoder) {
+                if(seq == flow.getNextSeq()) return;
+                DebugLog.w(TAG, "Resending from frame {}", seq);
+                for(; seq != flow.getNextSeq(); seq++) {
+                    out.write(flow.getRetained(seq), 0, flow.getRetainedLength(seq));
+                    stats.framesOut.incrementAndGet();
+                    stats.retransmits.incrementAndGet();
+                }
+            }
+            endWrite(out, true);
+        }
+
         public void send(BluetoothMessage msg) {
+            send(msg, 0, 0);
+        }
+
+        /**
+         * Send a message, as a request or reply if correlationFlags is
+         * FLAG_REQUEST or FLAG_REPLY.
+         */
+        void send(BluetoothMessage msg, int correlationFlags, int correlation) {
+            if(writer != null && msg != null) {
+                OutboundQueue.Entry entry = new OutboundQueue.Entry();
+                entry.type = OutboundQueue.TYPE_MESSAGE;
+                entry.msg = msg;
+                entry.channel = msg.channel;
+                entry.correlationFlags = correlationFlags;
+                entry.correlation = correlation;
+                writer.enqueue(entry);
+            } else {
+                long start = System.nanoTime();
+                sendNow(msg, correlationFlags, correlation);
+                sent(start);
+            }
+        }
+
+        /**
+         * Send a request, completing the future when its reply arrives or
+         * failing it after timeoutMs.
+         */
+        public Future<BluetoothMessage> request(BluetoothMessage msg, long timeoutMs) {
+            final ReplyTracker.ReplyFuture future = replies.add();
+            if(frameVersion != FrameCodec.VERSION_1) {
+                replies.fail(future.id, new IOException("Requests need version 1 frames"));
+                return future;
+            }
+            if(timeoutMs > 0) {
+                future.setTimeout(getScheduler().schedule(new Runnable() {
+                        public void run() {
+                            replies.fail(future.id, new TimeoutException("No reply to request "+future.id));
+                        }
+                    }, timeoutMs, TimeUnit.MILLISECONDS));
+            }
+            send(msg, FrameCodec.FLAG_REQUEST, future.id);
+            return future;
+        }
+
+        public void sendStream(int channel, int cmd, InputStream stream) {
+            if(writer != null) {
+                writer.enqueue(OutboundQueue.TYPE_CHANNEL_STREAM, null, cmd, null, 0, stream, false, channel);
+            } else {
+                OutboundQueue.Entry entry = new OutboundQueue.Entry();
+                entry.cmd = cmd;
+                entry.stream = stream;
+                entry.channel = channel;
+                byte[] buffer = new byte[ChannelScheduler.FRAGMENT_SIZE];
+                long start = System.nanoTime();
+                while(!entry.done) {
+                    sendStreamPart(entry, buffer);
+                }
+                sent(start);
+            }
+        }
+
+        public void write(int cmd, boolean urgent) {
+            if(writer != null) {
+                writer.enqueue(OutboundQueue.TYPE_BYTE, null, cmd, null, 0, null, urgent, 0);
+            } else {
+                long start = System.nanoTime();
+                writeNow(cmd, urgent);
+                sent(start);
+            }
+        }
+
+        public void flush() {
+            if(writer != null) {
+                writer.enqueue(OutboundQueue.TYPE_FLUSH, null, 0, null, 0, null, false, 0);
+            } else {
+                flushNow();
+            }
+        }
+
+        public void write(InputStream stream) {
+            if(writer != null) {
+                writer.enqueue(OutboundQueue.TYPE_STREAM, null, 0, null, 0, stream, false, 0);
+            } else {
+                long start = System.nanoTime();
+                writeNow(stream);
+                sent(start);
+            }
+        }
+
+        public void write(byte[] buffer, int len) {
+            if(writer != null) {
+                writer.enqueue(OutboundQueue.TYPE_BYTES, null, 0, buffer, len, null, false, 0);
+            } else {
+                long start = System.nanoTime();
+                writeNow(buffer, len);
+                sent(start);
+            }
+        }
+
+        /**
+         * Record the latency of a write that began at start, once its data
+         * has left the coalescing buffer.
+         */
+        void sent(long start) {
+            if(coalescer != null) {
+                coalescer.recordWhenWritten(stats.sendLatency, start);
+            } else {
+                stats.sendLatency.record(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Perform a queued write, or the next part of one sent in
+         * fragments. Sets entry.done once the write is complete. Called on
+         * the writer thread.
+         * @param buffer Scratch space for stream parts
+         * @return The number of bytes written
+         */
+        int perform(OutboundQueue.Entry entry, byte[] buffer) {
+            switch(entry.type) {
+            case OutboundQueue.TYPE_MESSAGE:
+                if(entry.msg.channel != 0) return sendPart(entry);
+                sendNow(entry.msg, entry.correlationFlags, entry.correlation);
+                entry.done = true;
+                return entry.msg.bytes == null ? 0 : entry.msg.bytes.length;
+            case OutboundQueue.TYPE_CHANNEL_STREAM:
+                return sendStreamPart(entry, buffer);
+            case OutboundQueue.TYPE_BYTE:
+                writeNow(entry.cmd, entry.urgent);
+                entry.done = true;
+                return 1;
+            case OutboundQueue.TYPE_BYTES:
+                writeNow(entry.bytes, entry.length);
+                entry.done = true;
+                return entry.length;
+            case OutboundQueue.TYPE_STREAM:
+                entry.done = true;
+                return writeNow(entry.stream);
+            case OutboundQueue.TYPE_FLUSH:
+                flushNow();
+                entry.done = true;
+                return 0;
+            case OutboundQueue.TYPE_CONTROL:
+            case OutboundQueue.TYPE_RESEND:
+                entry.done = true;
+                try {
+                    if(entry.type == OutboundQueue.TYPE_CONTROL) {
+                        sendControlNow(entry.cmd, entry.bytes, 0, entry.length);
+                        return entry.length;
+                    }
+                    resendFrom(entry.seq);
+                } catch(IOException e) {
+                    stats.errors.incrementAndGet();
+                    DebugLog.e(TAG, "Exception sending control frame {}", e.getMessage());
+                }
+                return 0;
+            }
+            entry.done = true;
+            return 0;
+        }
+
+        /**
+         * Finish a logical write. Coalesced writes are left for the
+         * coalescer to flush unless urgent.
+         */
+        private void endWrite(OutputStream out, boolean urgent) throws IOException {
+            if(coalescer != null && !urgent) {
+                coalescer.flushLater();
+            } else {
+                out.flush();
+            }
+        }
+
+        private void flushNow() {
+            OutputStream out = mmOutStream;
+            if(out == null) return;
+            try {
+                out.flush();
+            } catch(IOException e) {
+                stats.errors.incrementAndGet();
+                DebugLog.e(TAG, "Exception during flush {}", e.getMessage());
+            }
+        }
+
+        private void sendNow(BluetoothMessage msg, int correlationFlags, int correlation) {
+            OutputStream out = mmOutStream;
+            if(out == null) return;
             try {
-                if(msg != null) msg.write(mmOutStream);
+                if(msg != null) {
+                    int length = msg.bytes == null ? 0 : msg.bytes.length;
+                    if(msg.channel != 0) {
+                        int offset = 0;
+                        do {
+                            offset = sendFragment(msg, correlationFlags, correlation, offset, out);
+                        } while(offset < length);
+                    } else if(correlationFlags != 0 || ((flow.isSending() || compression.shouldCompress(length))
+                                                        && frameVersion == FrameCodec.VERSION_1)) {
+                        // Only version 1 frames carry the correlation id
+                        sendFrame(correlationFlags, 0, correlation, msg.cmd, msg.bytes, 0, length, out);
+                    } else {
+                        synchronized(encoder) {
+                            encoder.setVersion(frameVersion);
+                            encoder.write(msg, out);
+                        }
+                        stats.framesOut.incrementAndGet();
+                    }
+                    endWrite(out, msg.urgent);
+                }
                 else DebugLog.e(TAG, "Tried to send a null message");
             } catch(IOException e) {
-                DebugLog.e(TAG, "Exception sending BluetoothMessage "+e.getMessage());
+                stats.errors.incrementAndGet();
+                DebugLog.e(TAG, "Exception sending BluetoothMessage {}", e.getMessage());
+                failRequest(correlationFlags, correlation, e);
+            }
+        }
+
+        /**
+         * Fail the reply future of a request that couldn't be sent.
+         */
+        private void failRequest(int correlationFlags, int correlation, IOException e) {
+            if((correlationFlags & FrameCodec.FLAG_REQUEST) != 0) {
+                replies.fail(correlation, e);
+            }
+        }
+
+        /**
+         * Send a version 1 frame. With flow control it is sequenced and
+         * sent once the peer grants a credit, keeping a copy until it is
+         * acked.
+         */
+        private void sendFrame(int flags, int channel, int correlation, int cmd,
+                               byte[] payload, int offset, int length, OutputStream out) throws IOException {
+            boolean sequenced = flow.isSending();
+            if(sequenced) {
+                // The peer may be waiting for our acks before granting credit
+                while(!flow.acquire()) {
+                    if(writer != null) writer.sendControlFrames();
+                }
+                flags |= FrameCodec.FLAG_SEQUENCED;
+            }
+            synchronized(encoder) {
+                int frameLength;
+                try {
+                    frameLength = encodeFrame(flags, sequenced ? flow.getNextSeq() : 0,
+                                              channel, correlation, cmd, payload, offset, length);
+                } catch(IOException e) {
+                    if(sequenced) flow.release();
+                    throw e;
+                }
+                if(sequenced) flow.sent(encoder.getBuffer(), frameLength);
+                out.write(encoder.getBuffer(), 0, frameLength);
+            }
+            stats.framesOut.incrementAndGet();
+        }
+
+        /**
+         * Send the fragment of a channel message starting at offset.
+         * @return The offset of the next fragment
+         */
+        private int sendFragment(BluetoothMessage msg, int correlationFlags, int correlation,
+                                 int offset, OutputStream out) throws IOException {
+            // A reply goes out as version 1 frames whatever the version, see reply()
+            if(frameVersion != FrameCodec.VERSION_1 && correlationFlags != FrameCodec.FLAG_REPLY) {
+                throw new IOException("Channels need version 1 frames");
+            }
+            int length = msg.bytes == null ? 0 : msg.bytes.length;
+            int n = Math.min(length - offset, ChannelScheduler.FRAGMENT_SIZE);
+            int flags = offset + n < length ? FrameCodec.FLAG_MORE : 0;
+            sendFrame(flags | correlationFlags, msg.channel, correlation, msg.cmd,
+                      msg.bytes, offset, n, out);
+            return offset + n;
+        }
+
+        /**
+         * Send the next fragment of a queued channel message.
+         * @return The number of bytes sent
+         */
+        private int sendPart(OutboundQueue.Entry entry) {
+            BluetoothMessage msg = entry.msg;
+            int length = msg.bytes == null ? 0 : msg.bytes.length;
+            int start = entry.offset;
+            OutputStream out = mmOutStream;
+            try {
+                if(out == null) throw new IOException("Connection closed");
+                entry.offset = sendFragment(msg, entry.correlationFlags, entry.correlation, start, out);
+                entry.done = entry.offset >= length;
+                if(entry.done) endWrite(out, msg.urgent);
+            } catch(IOException e) {
+                stats.errors.incrementAndGet();
+                DebugLog.e(TAG, "Exception sending BluetoothMessage {}", e.getMessage());
+                failRequest(entry.correlationFlags, entry.correlation, e);
+                entry.done = true;
+            }
+            return entry.offset - start;
+        }
+
+        /**
+         * Send the next message of a channel stream, or the empty message
+         * that ends it.
+         * @return The number of bytes sent
+         */
+        private int sendStreamPart(OutboundQueue.Entry entry, byte[] buffer) {
+            OutputStream out = mmOutStream;
+            try {
+                if(out == null) throw new IOException("Connection closed");
+                if(frameVersion != FrameCodec.VERSION_1) {
+                    throw new IOException("Channels need version 1 frames");
+                }
+                int len = entry.stream.read(buffer, 0, buffer.length);
+                if(len == -1) {
+                    sendFrame(0, entry.channel, 0, entry.cmd, buffer, 0, 0, out);
+                    endWrite(out, false);
+                    entry.done = true;
+                    return 0;
+                }
+                sendFrame(0, entry.channel, 0, entry.cmd, buffer, 0, len, out);
+                return len;
+            } catch(IOException e) {
+                stats.errors.incrementAndGet();
+                DebugLog.e(TAG, "Exception during channel stream {}", e.getMessage());
+                entry.done = true;
+                return 0;
             }
         }
 
-        public void write(int cmd) {
+        private void writeNow(int cmd, boolean urgent) {
+            OutputStream out = mmOutStream;
+            if(out == null) return;
             try {
-                mmOutStream.write(cmd);
-                mmOutStream.flush();
+                synchronized(encoder) {
+                    out.write(cmd);
+                }
+                endWrite(out, urgent);
             } catch(IOException e) {
-                DebugLog.e(TAG, "Exception during write command "+e.getMessage());
+                stats.errors.incrementAndGet();
+                DebugLog.e(TAG, "Exception during write command {}", e.getMessage());
             }
         }
 
-        public void write(InputStream stream) {
+        /**
+         * @return The number of bytes written
+         */
+        private int writeNow(InputStream stream) {
+            OutputStream out = mmOutStream;
+            if(out == null) return 0;
+            int total = 0;
             try {
-                BufferedInputStream bis = new BufferedInputStream(stream, BluetoothClient.CHUNK_SIZE);
-                byte[] buffer = new byte[BluetoothClient.CHUNK_SIZE];
-                int len;
-                while ((len = bis.read(buffer)) != -1) {
-                    mmOutStream.write(buffer, 0, len);
+                BufferedInputStream bis = new BufferedInputStream(stream, chunkSize);
+                byte[] buffer = new byte[chunkSize];
+                synchronized(encoder) {
+                    total = Streams.copy(bis, out, buffer);
                 }
-                mmOutStream.flush();
+                endWrite(out, false);
             } catch (IOException e) {
-                DebugLog.e(TAG, "Exception during write stream"+e.getMessage());
+                stats.errors.incrementAndGet();
+                DebugLog.e(TAG, "Exception during write stream {}", e.getMessage());
             }
+            return total;
         }
 
         /**
          * Write to the connected OutStream.
          * @param buffer  The bytes to write
          */
-        public void write(byte[] buffer, int len) {
+        private void writeNow(byte[] buffer, int len) {
+            OutputStream out = mmOutStream;
+            if(out == null) return;
             try {
-                int i=0, amount;
-                while(i < len) {
-                    amount = (len - i < BluetoothClient.CHUNK_SIZE) ? len-i : BluetoothClient.CHUNK_SIZE;
-                    mmOutStream.write(buffer, i, amount);
-                    i += amount;
+                synchronized(encoder) {
+                    Streams.writeChunked(out, buffer, len, chunkSize);
                 }
-                mmOutStream.flush();
+                endWrite(out, false);
             } catch (IOException e) {
+                stats.errors.incrementAndGet();
                 DebugLog.e(TAG, "Exception during write", e);
             }
         }
 
         public void closeSocket() {
+            if (writer != null) {
+                writer.cancel();
+            }
+            flow.close();
+            compression.close();
+            replies.failAll(new IOException("Connection closed"));
+            transfers.connectionClosed(this);
             if (mmInStream != null) {
                 try {mmInStream.close();} catch (Exception e) {}
                 mmInStream = null;
@@ -626,10 +2124,123 @@ public class BluetoothService {
                 try {mmSocket.close();} catch (Exception e) {}
                 mmSocket = null;
             }
+            if (trace != null) {
+                trace.closed(traceId);
+            }
+        }
+
+        public void cancel() {
+            running = false;
+            // Unblock the read in run()
+            if (mmSocket != null) {
+                try {mmSocket.close();} catch (Exception e) {}
+            }
+        }
+    }
+
+    /**
+     * This thread performs the socket writes of a connection when writes
+     * are queued. It is the only consumer of the connection's
+     * OutboundQueue, so frames never interleave. Queued writes are sorted
+     * by channel, and a ChannelScheduler picks the channel to serve next.
+     * Control frames go ahead of them, and are also sent while a flow
+     * controlled message waits for credit.
+     */
+    private class WriterThread extends ServiceTask {
+        private final ConnectedThread connection;
+        private final OutboundQueue queue = new OutboundQueue();
+        private final ChannelScheduler scheduler;
+        private final ArrayDeque<OutboundQueue.Entry> control = new ArrayDeque<OutboundQueue.Entry>();
+        private final byte[] streamBuffer = new byte[ChannelScheduler.FRAGMENT_SIZE];
+        // Entries offered and not yet done, counted into the stats' queue depth
+        private final AtomicInteger depth = new AtomicInteger();
+        volatile boolean running = true;
+
+        public WriterThread(ConnectedThread connection) {
+            this.connection = connection;
+            ChannelScheduler.Weights weights = new ChannelScheduler.Weights() {
+                    public int getChannelWeight(int channel) {
+                        return BluetoothService.this.getChannelWeight(channel);
+                    }
+                };
+            scheduler = new ChannelScheduler(weights, strictPriority, ChannelScheduler.FRAGMENT_SIZE);
+        }
+
+        void enqueue(int type, BluetoothMessage msg, int cmd, byte[] bytes, int length,
+                     InputStream stream, boolean urgent, int channel) {
+            OutboundQueue.Entry entry = new OutboundQueue.Entry();
+            entry.type = type;
+            entry.msg = msg;
+            entry.cmd = cmd;
+            entry.bytes = bytes;
+            entry.length = length;
+            entry.stream = stream;
+            entry.urgent = urgent;
+            entry.channel = channel;
+            enqueue(entry);
+        }
+
+        void enqueue(OutboundQueue.Entry entry) {
+            if (!running) return;
+            entry.queuedAt = System.nanoTime();
+            depth.incrementAndGet();
+            connection.stats.queued(1);
+            queue.offer(entry);
+        }
+
+        protected void runTask() {
+            DebugLog.d(TAG, "BEGIN writerThread");
+            setName("WriterThread");
+            while (running) {
+                sendControlFrames();
+                OutboundQueue.Entry entry;
+                if (scheduler.isEmpty()) {
+                    entry = queue.take();
+                    if (entry != null) add(entry);
+                    continue;
+                }
+                entry = scheduler.next();
+                int bytes = connection.perform(entry, streamBuffer);
+                scheduler.sent(entry, bytes);
+                if (entry.done) {
+                    depth.decrementAndGet();
+                    connection.stats.queued(-1);
+                    if (entry.type != OutboundQueue.TYPE_FLUSH) connection.sent(entry.queuedAt);
+                    entry.clear();
+                }
+            }
+            // Whatever is left will never be written
+            connection.stats.queued(-depth.getAndSet(0));
+        }
+
+        private void add(OutboundQueue.Entry entry) {
+            if (entry.type == OutboundQueue.TYPE_CONTROL || entry.type == OutboundQueue.TYPE_RESEND) {
+                control.add(entry);
+            } else {
+                scheduler.add(entry);
+            }
+        }
+
+        /**
+         * Take everything queued, and send the control frames. Called on
+         * the writer thread only.
+         */
+        void sendControlFrames() {
+            OutboundQueue.Entry entry;
+            while ((entry = queue.poll()) != null) {
+                add(entry);
+            }
+            while ((entry = control.poll()) != null) {
+                connection.perform(entry, streamBuffer);
+                depth.decrementAndGet();
+                connection.stats.queued(-1);
+                entry.clear();
+            }
         }
 
         public void cancel() {
             running = false;
+            queue.wakeUp();
         }
     }
 }
@@ -0,0 +1,153 @@
+package com.threeDBJ.bluetooth;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the connections to one device, kept across reconnects, or
+ * the sum over all devices. The service updates them with single atomic
+ * operations on the read and write paths.
+ *
+ * @see BluetoothService#getStats(String)
+ */
+public class BluetoothStats {
+    final AtomicLong bytesIn = new AtomicLong();
+    final AtomicLong bytesOut = new AtomicLong();
+    final AtomicLong framesIn = new AtomicLong();
+    final AtomicLong framesOut = new AtomicLong();
+    final AtomicLong flushes = new AtomicLong();
+    final AtomicLong retransmits = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong connects = new AtomicLong();
+    final AtomicLong reconnects = new AtomicLong();
+    final AtomicInteger queueDepth = new AtomicInteger();
+    final AtomicInteger maxQueueDepth = new AtomicInteger();
+    final LatencyHistogram sendLatency = new LatencyHistogram();
+    final LatencyHistogram connectTime = new LatencyHistogram();
+
+    /* Bytes read from and written to the socket */
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /* Frames decoded and sent, including control frames */
+    public long getFramesIn() {
+        return framesIn.get();
+    }
+
+    public long getFramesOut() {
+        return framesOut.get();
+    }
+
+    /* Flushes of the socket stream */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /* Frames sent again after a NACK */
+    public long getRetransmits() {
+        return retransmits.get();
+    }
+
+    /* Failed writes and connections lost to read errors */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getConnects() {
+        return connects.get();
+    }
+
+    /* Reconnect attempts scheduled by the ReconnectPolicy */
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    /* Writes queued for the writer thread and not yet performed */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * Time from a send() or write() call until the data has been handed
+     * to the socket. Includes time spent queued, and waiting in the
+     * coalescing buffer for the delayed flush when writes are coalesced.
+     */
+    public LatencyHistogram getSendLatency() {
+        return sendLatency;
+    }
+
+    /**
+     * Time outgoing connects took to succeed.
+     */
+    public LatencyHistogram getConnectTime() {
+        return connectTime;
+    }
+
+    void queued(int delta) {
+        int depth = queueDepth.addAndGet(delta);
+        int max;
+        while(depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth));
+    }
+
+    /**
+     * @return A copy that no longer changes
+     */
+    public BluetoothStats snapshot() {
+        BluetoothStats copy = new BluetoothStats();
+        copy.add(this);
+        return copy;
+    }
+
+    void add(BluetoothStats other) {
+        bytesIn.addAndGet(other.bytesIn.get());
+        bytesOut.addAndGet(other.bytesOut.get());
+        framesIn.addAndGet(other.framesIn.get());
+        framesOut.addAndGet(other.framesOut.get());
+        flushes.addAndGet(other.flushes.get());
+        retransmits.addAndGet(other.retransmits.get());
+        errors.addAndGet(other.errors.get());
+        connects.addAndGet(other.connects.get());
+        reconnects.addAndGet(other.reconnects.get());
+        queueDepth.addAndGet(other.queueDepth.get());
+        maxQueueDepth.set(Math.max(maxQueueDepth.get(), other.maxQueueDepth.get()));
+        sendLatency.add(other.sendLatency);
+        connectTime.add(other.connectTime);
+    }
+
+    /**
+     * Zero the counters and histograms. The queue depth is left alone,
+     * since it describes writes still pending.
+     */
+    public void reset() {
+        bytesIn.set(0);
+        bytesOut.set(0);
+        framesIn.set(0);
+        framesOut.set(0);
+        flushes.set(0);
+        retransmits.set(0);
+        errors.set(0);
+        connects.set(0);
+        reconnects.set(0);
+        maxQueueDepth.set(queueDepth.get());
+        sendLatency.reset();
+        connectTime.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "in=" + getBytesIn() + "B/" + getFramesIn() + "f out=" + getBytesOut() + "B/" + getFramesOut()
+            + "f flushes=" + getFlushes() + " retransmits=" + getRetransmits() + " errors=" + getErrors()
+            + " connects=" + getConnects() + " reconnects=" + getReconnects()
+            + " queue=" + getQueueDepth() + "/" + getMaxQueueDepth()
+            + " send[" + sendLatency + "] connect[" + connectTime + "]";
+    }
+}
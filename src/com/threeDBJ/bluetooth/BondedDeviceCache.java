@@ -0,0 +1,124 @@
+package com.threeDBJ.bluetooth;
+
+import java.util.HashMap;
+import java.util.Set;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+/**
+ * Address index of the bonded devices of a BluetoothAdapter. The index is
+ * filled from getBondedDevices() on first use and then kept up to date from
+ * bond state broadcasts, so a lookup is a map access instead of an IPC
+ * into the Bluetooth stack and a scan of every bonded device.
+ *
+ * Broadcasts are only seen after register(), so until then the devices
+ * are only reused by lookups made within REUSE_UNREGISTERED_MS of loading
+ * them, eg. the check and the connect of one connectToAddress(), and
+ * loaded from the adapter again after.
+ */
+public class BondedDeviceCache extends BroadcastReceiver {
+    private static final String TAG = "BTAndroid";
+    private static BondedDeviceCache instance;
+
+    /* How long lookups reuse the loaded devices while not registered */
+    public static final long REUSE_UNREGISTERED_MS = 1000;
+
+    private final BluetoothAdapter btAdapter;
+    private HashMap<String, BluetoothDevice> devices;
+    private boolean registered;
+    private long loadedNanos;
+
+    public BondedDeviceCache(BluetoothAdapter btAdapter) {
+        this.btAdapter = btAdapter;
+    }
+
+    /**
+     * @return The cache of the default BluetoothAdapter
+     */
+    public static synchronized BondedDeviceCache getInstance() {
+        if(instance == null) {
+            instance = new BondedDeviceCache(BluetoothAdapter.getDefaultAdapter());
+        }
+        return instance;
+    }
+
+    /**
+     * Start following bond state changes. The receiver is registered with
+     * the application context, so it can stay registered for the life of
+     * the process.
+     */
+    public synchronized void register(Context context) {
+        if(registered) return;
+        IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+        context.getApplicationContext().registerReceiver(this, filter);
+        registered = true;
+        devices = null;
+    }
+
+    public synchronized void unregister(Context context) {
+        if(!registered) return;
+        try {
+            context.getApplicationContext().unregisterReceiver(this);
+        } catch(IllegalArgumentException e) {}
+        registered = false;
+        devices = null;
+    }
+
+    /**
+     * Find a bonded device.
+     * @param address The BDADDR of the device
+     * @return The device, or null if it isn't bonded
+     */
+    public synchronized BluetoothDevice get(String address) {
+        if(devices == null || (!registered && System.nanoTime() - loadedNanos > REUSE_UNREGISTERED_MS * 1000000)) {
+            devices = load();
+            loadedNanos = System.nanoTime();
+        }
+        return devices.get(address);
+    }
+
+    /**
+     * Drop the index, so it is reloaded on the next lookup.
+     */
+    public synchronized void invalidate() {
+        devices = null;
+    }
+
+    private HashMap<String, BluetoothDevice> load() {
+        HashMap<String, BluetoothDevice> map = new HashMap<String, BluetoothDevice>();
+        Set<BluetoothDevice> bonded = btAdapter.getBondedDevices();
+        if(bonded != null) {
+            for(BluetoothDevice device : bonded) {
+                map.put(device.getAddress(), device);
+            }
+        }
+        DebugLog.d(TAG, "Loaded bonded devices: {}", map.size());
+        return map;
+    }
+
+    @Override
+    public synchronized void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        if(BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
+            if(devices == null) return;
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.BOND_NONE);
+            if(device == null) {
+                devices = null;
+            } else if(bondState == BluetoothDevice.BOND_BONDED) {
+                devices.put(device.getAddress(), device);
+            } else if(bondState == BluetoothDevice.BOND_NONE) {
+                devices.remove(device.getAddress());
+            }
+        } else if(BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
+            // The bonded list isn't available while the adapter is off
+            devices = null;
+        }
+    }
+}
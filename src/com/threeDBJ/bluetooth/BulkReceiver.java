@@ -0,0 +1,23 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * Optional interface for a BluetoothClient that takes received data in
+ * bulk. If the service's client implements it, the connected thread fills
+ * a reusable buffer with bulk reads and hands over each read as a single
+ * slice, instead of calling receivedData(int, InputStream) once per byte.
+ */
+public interface BulkReceiver {
+
+    /**
+     * Called on the connected thread with the bytes of one read.
+     *
+     * @param address The address of the device the data came from
+     * @param buffer The receive buffer. It is reused, so the contents are
+     *               only valid until this call returns.
+     * @param offset The offset of the data in buffer
+     * @param length The number of bytes received
+     */
+    public void receivedData(String address, byte[] buffer, int offset, int length) throws IOException;
+}
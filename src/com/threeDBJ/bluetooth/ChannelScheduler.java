@@ -0,0 +1,112 @@
+package com.threeDBJ.bluetooth;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Decides which channel's queued write the writer thread performs next.
+ * Each channel has a weight. With strict priority the channel with the
+ * highest weight that has anything queued always goes next. Otherwise
+ * channels take turns, each sending about weight * quantum bytes per turn
+ * (deficit round robin), so a busy channel can't starve the others.
+ *
+ * Writes on one channel stay in order. Only the writer thread uses a
+ * scheduler.
+ */
+class ChannelScheduler {
+    /* Largest piece of a channel message sent in one go */
+    static final int FRAGMENT_SIZE = 1024;
+
+    interface Weights {
+        public int getChannelWeight(int channel);
+    }
+
+    private static class Lane {
+        final int channel, weight;
+        final ArrayDeque<OutboundQueue.Entry> entries = new ArrayDeque<OutboundQueue.Entry>();
+        long deficit;
+
+        Lane(int channel, int weight) {
+            this.channel = channel;
+            this.weight = Math.max(weight, 1);
+        }
+    }
+
+    private final HashMap<Integer, Lane> lanes = new HashMap<Integer, Lane>();
+    /* Highest weight first with strict priority, else in order of creation */
+    private final ArrayList<Lane> order = new ArrayList<Lane>();
+    private final Weights weights;
+    private final boolean strict;
+    private final int quantum;
+    private Lane current;
+    private int cursor;
+    private int size;
+
+    ChannelScheduler(Weights weights, boolean strict, int quantum) {
+        this.weights = weights;
+        this.strict = strict;
+        this.quantum = quantum;
+    }
+
+    void add(OutboundQueue.Entry entry) {
+        Lane lane = lanes.get(entry.channel);
+        if(lane == null) {
+            lane = new Lane(entry.channel, weights.getChannelWeight(entry.channel));
+            lanes.put(entry.channel, lane);
+            int i = order.size();
+            if(strict) {
+                while(i > 0 && order.get(i - 1).weight < lane.weight) i--;
+            }
+            order.add(i, lane);
+        }
+        lane.entries.add(entry);
+        size += 1;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return The entry to perform next, which stays queued until sent()
+     *         reports it done. Only call when not empty.
+     */
+    OutboundQueue.Entry next() {
+        if(strict) {
+            for(Lane lane : order) {
+                if(!lane.entries.isEmpty()) {
+                    current = lane;
+                    return lane.entries.peekFirst();
+                }
+            }
+        }
+        for(;;) {
+            Lane lane = order.get(cursor);
+            if(lane.entries.isEmpty()) {
+                lane.deficit = 0;
+                cursor = (cursor + 1) % order.size();
+                continue;
+            }
+            if(lane.deficit <= 0) lane.deficit += (long)lane.weight * quantum;
+            current = lane;
+            return lane.entries.peekFirst();
+        }
+    }
+
+    /**
+     * Account for a write of the entry returned by next().
+     * @param bytes The number of bytes written
+     */
+    void sent(OutboundQueue.Entry entry, int bytes) {
+        Lane lane = current;
+        if(entry.done) {
+            lane.entries.pollFirst();
+            size -= 1;
+        }
+        if(!strict) {
+            lane.deficit -= bytes;
+            if(lane.deficit <= 0) cursor = (cursor + 1) % order.size();
+        }
+    }
+}
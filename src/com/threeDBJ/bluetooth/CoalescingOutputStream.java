@@ -0,0 +1,150 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers small writes into packet sized writes. Buffered data goes out
+ * when the buffer is full, on flush(), or when flushLater() has been
+ * called and the delay has passed without anything else flushing it, so
+ * a burst of small commands becomes one packet instead of many.
+ */
+public class CoalescingOutputStream extends OutputStream {
+    private static final String TAG = "BTAndroid";
+    /* Payload of a typical RFCOMM packet */
+    public static final int DEFAULT_PACKET_SIZE = 990;
+    public static final long DEFAULT_DELAY_MS = 5;
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private final long delayMs;
+    private final ScheduledExecutorService scheduler;
+    private int count;
+    private ScheduledFuture<?> pendingFlush;
+    // Start times of writes waiting in the buffer, see recordWhenWritten()
+    private LatencyHistogram latency;
+    private long[] starts = new long[16];
+    private int startCount;
+
+    private final Runnable delayedFlush = new Runnable() {
+            public void run() {
+                try {
+                    flush();
+                } catch(IOException e) {
+                    DebugLog.e(TAG, "Exception during delayed flush {}", e.getMessage());
+                }
+            }
+        };
+
+    /**
+     * @param out The stream to write packets to
+     * @param packetSize The size of the buffer. Writes at least this large
+     *                   bypass the buffer.
+     * @param delayMs How long flushLater() waits for more data
+     * @param scheduler Runs delayed flushes
+     */
+    public CoalescingOutputStream(OutputStream out, int packetSize, long delayMs,
+                                  ScheduledExecutorService scheduler) {
+        this.out = out;
+        this.buffer = new byte[packetSize];
+        this.delayMs = delayMs;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if(count == buffer.length) drain();
+        buffer[count++] = (byte)b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if(count > 0) {
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if(count < buffer.length) return;
+            drain();
+        }
+        if(len >= buffer.length) {
+            // Already a full packet, don't copy it
+            out.write(b, off, len);
+        } else if(len > 0) {
+            System.arraycopy(b, off, buffer, 0, len);
+            count = len;
+        }
+    }
+
+    /**
+     * Write out any buffered data now.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        cancelPendingFlush();
+        drain();
+        out.flush();
+    }
+
+    /**
+     * Mark the end of a logical write. Buffered data is flushed after the
+     * delay unless more data fills the buffer first.
+     */
+    public synchronized void flushLater() throws IOException {
+        if(count == 0) return;
+        if(delayMs <= 0 || scheduler == null) {
+            flush();
+        } else if(pendingFlush == null) {
+            pendingFlush = scheduler.schedule(delayedFlush, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Record the time from start until the data buffered now is written
+     * out, straight away if nothing is buffered.
+     */
+    synchronized void recordWhenWritten(LatencyHistogram histogram, long start) {
+        if(count == 0) {
+            histogram.record(System.nanoTime() - start);
+            return;
+        }
+        latency = histogram;
+        if(startCount == starts.length) starts = Arrays.copyOf(starts, startCount * 2);
+        starts[startCount++] = start;
+    }
+
+    private void drain() throws IOException {
+        if(count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+        if(startCount > 0) {
+            long now = System.nanoTime();
+            for(int i = 0; i < startCount; i++) {
+                latency.record(now - starts[i]);
+            }
+            startCount = 0;
+        }
+    }
+
+    private void cancelPendingFlush() {
+        if(pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+    }
+}
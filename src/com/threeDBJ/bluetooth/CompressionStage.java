@@ -0,0 +1,164 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Payload compression for one connection. The Deflater, Inflater and their
+ * buffers are kept for the life of the connection and reset for each frame,
+ * so frames can be inflated in any order, eg. after a resend.
+ *
+ * What a peer can inflate is learned from its profile, the payload of the
+ * REQUEST_PROFILE and CLIENT_PROFILE control frames: a varint bitmask of
+ * codecs, and a varint id of its preset dictionary, 0 for none. Frames are
+ * only compressed once the peer's profile has arrived, and only with the
+ * dictionary if the peer has the same one.
+ *
+ * A compressed payload is the varint length of the original payload
+ * followed by the deflated data, and the frame has FLAG_COMPRESSED.
+ */
+class CompressionStage {
+    static final int CODEC_DEFLATE = 0x01;
+    /* Codecs this side can inflate */
+    static final int CODECS = CODEC_DEFLATE;
+
+    private final int threshold;
+    private final byte[] dictionary;
+    private final int dictionaryId;
+
+    private volatile int peerCodecs;
+    private volatile int peerDictionaryId;
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] compressed = new byte[256];
+    private byte[] inflated = new byte[256];
+    private final byte[] profile = new byte[10];
+
+    /**
+     * @param threshold The smallest payload to compress, 0 to never
+     *                  compress but still inflate
+     * @param dictionary Preset dictionary, or null
+     */
+    CompressionStage(int threshold, byte[] dictionary) {
+        this.threshold = threshold;
+        this.dictionary = dictionary;
+        this.dictionaryId = dictionaryId(dictionary);
+    }
+
+    static int dictionaryId(byte[] dictionary) {
+        if(dictionary == null) return 0;
+        Adler32 adler = new Adler32();
+        adler.update(dictionary);
+        return (int)adler.getValue();
+    }
+
+    boolean isSending() {
+        return threshold > 0;
+    }
+
+    /**
+     * @return Whether a payload of length bytes should be compressed
+     */
+    boolean shouldCompress(int length) {
+        return threshold > 0 && length >= threshold && (peerCodecs & CODEC_DEFLATE) != 0;
+    }
+
+    /**
+     * Compress a payload into getBuffer().
+     * @return The compressed length, or -1 if it wouldn't be smaller
+     */
+    synchronized int compress(byte[] payload, int offset, int length) {
+        if(deflater == null) deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        deflater.reset();
+        if(dictionary != null && peerDictionaryId == dictionaryId) {
+            deflater.setDictionary(dictionary);
+        }
+        if(compressed.length < length) {
+            compressed = new byte[Math.max(length, compressed.length * 2)];
+        }
+        int pos = FrameCodec.putVarint(compressed, 0, length);
+        deflater.setInput(payload, offset, length);
+        deflater.finish();
+        while(!deflater.finished()) {
+            if(pos >= length) return -1;
+            pos += deflater.deflate(compressed, pos, length - pos);
+        }
+        return pos;
+    }
+
+    byte[] getBuffer() {
+        return compressed;
+    }
+
+    /**
+     * Replace a compressed frame's payload with the inflated one, which
+     * is only valid until the next frame is inflated.
+     */
+    synchronized void inflate(Frame frame) throws IOException {
+        int end = frame.offset + frame.length;
+        int length = FrameCodec.readVarint(frame.buffer, frame.offset, end);
+        if(length < 0 || length > FrameCodec.MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid inflated length "+length);
+        }
+        int pos = frame.offset + FrameCodec.varintSize(length);
+        if(inflater == null) inflater = new Inflater();
+        inflater.reset();
+        inflater.setInput(frame.buffer, pos, end - pos);
+        if(inflated.length < length) {
+            inflated = new byte[Math.max(length, inflated.length * 2)];
+        }
+        try {
+            int n = 0;
+            while(n < length) {
+                int read = inflater.inflate(inflated, n, length - n);
+                if(read == 0) {
+                    if(inflater.needsDictionary() && dictionary != null
+                       && inflater.getAdler() == dictionaryId) {
+                        inflater.setDictionary(dictionary);
+                    } else {
+                        throw new IOException("Can't inflate frame");
+                    }
+                }
+                n += read;
+            }
+        } catch(DataFormatException e) {
+            throw new IOException("Corrupt compressed frame - "+e.getMessage());
+        }
+        frame.flags &= ~FrameCodec.FLAG_COMPRESSED;
+        frame.buffer = inflated;
+        frame.offset = 0;
+        frame.length = length;
+    }
+
+    /**
+     * Build this side's profile into getProfileBuffer().
+     * @return The length of the profile
+     */
+    int encodeProfile() {
+        int pos = FrameCodec.putVarint(profile, 0, CODECS);
+        return FrameCodec.putVarint(profile, pos, dictionaryId);
+    }
+
+    byte[] getProfileBuffer() {
+        return profile;
+    }
+
+    void receivedProfile(Frame frame) throws IOException {
+        int end = frame.offset + frame.length;
+        int codecs = FrameCodec.readVarint(frame.buffer, frame.offset, end);
+        int pos = frame.offset + FrameCodec.varintSize(codecs);
+        peerDictionaryId = pos < end ? FrameCodec.readVarint(frame.buffer, pos, end) : 0;
+        peerCodecs = codecs;
+    }
+
+    synchronized void close() {
+        if(deflater != null) deflater.end();
+        if(inflater != null) inflater.end();
+        deflater = null;
+        inflater = null;
+    }
+}
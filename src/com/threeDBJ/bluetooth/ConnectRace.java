@@ -0,0 +1,180 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to a device with several ConnectStrategies at once. Attempts
+ * start staggerMs apart in order, and an attempt that fails starts the
+ * next one straight away. The first socket to connect wins and every other
+ * attempt is closed. With a stagger of 0 all attempts start together.
+ */
+class ConnectRace {
+    private static final String TAG = "BTAndroid";
+
+    private final Transport transport;
+    private final String address;
+    private final List<ConnectStrategy> strategies;
+    private final long staggerMs;
+    private final ConnectStats stats;
+    private final Executor executor;
+    private final ScheduledExecutorService scheduler;
+
+    private final List<TransportSocket> sockets = new ArrayList<TransportSocket>();
+    private int started, failed;
+    private TransportSocket winner;
+    private ConnectStrategy winningStrategy;
+    private boolean cancelled;
+    private IOException lastError;
+
+    ConnectRace(Transport transport, String address, List<ConnectStrategy> strategies, long staggerMs,
+                ConnectStats stats, Executor executor, ScheduledExecutorService scheduler) {
+        this.transport = transport;
+        this.address = address;
+        this.strategies = stats.order(strategies);
+        this.staggerMs = staggerMs;
+        this.stats = stats;
+        this.executor = executor;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Run the race. Blocks until a strategy connects, every strategy has
+     * failed, or the race is cancelled.
+     * @return The connected socket
+     */
+    TransportSocket connect() throws IOException {
+        synchronized(this) {
+            if(strategies.isEmpty()) throw new IOException("No connect strategies");
+            if(staggerMs <= 0) {
+                while(started < strategies.size()) startNext();
+            } else {
+                startNext();
+            }
+            try {
+                while(winner == null && !cancelled && failed < strategies.size()) {
+                    wait();
+                }
+            } catch(InterruptedException e) {
+                cancelled = true;
+            }
+            if(winner != null) return winner;
+        }
+        cancel();
+        if(lastError != null) throw lastError;
+        throw new IOException("Connect cancelled");
+    }
+
+    /**
+     * @return The strategy that connected, once connect() has returned
+     */
+    synchronized ConnectStrategy getWinningStrategy() {
+        return winningStrategy;
+    }
+
+    /**
+     * Close every socket except the winner's.
+     */
+    void cancel() {
+        List<TransportSocket> losers;
+        synchronized(this) {
+            if(winner == null) cancelled = true;
+            losers = new ArrayList<TransportSocket>(sockets);
+            losers.remove(winner);
+            sockets.clear();
+            notifyAll();
+        }
+        for(TransportSocket socket : losers) {
+            try {socket.close();} catch(IOException e) {}
+        }
+    }
+
+    /* Start the next attempt, and schedule the one after it. Locked */
+    private void startNext() {
+        if(started >= strategies.size() || winner != null || cancelled) return;
+        final ConnectStrategy strategy = strategies.get(started++);
+        try {
+            executor.execute(new Runnable() {
+                    public void run() {
+                        attempt(strategy);
+                    }
+                });
+        } catch(RejectedExecutionException e) {
+            failed(strategy, 0, new IOException("No thread for " + strategy));
+            return;
+        }
+        if(staggerMs > 0 && started < strategies.size()) {
+            final int next = started;
+            scheduler.schedule(new Runnable() {
+                    public void run() {
+                        synchronized(ConnectRace.this) {
+                            if(started == next) startNext();
+                        }
+                    }
+                }, staggerMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void attempt(ConnectStrategy strategy) {
+        long start = System.currentTimeMillis();
+        TransportSocket socket = null;
+        IOException error = null;
+        try {
+            socket = strategy.createSocket(transport, address);
+            synchronized(this) {
+                if(winner != null || cancelled) {
+                    socket.close();
+                    return;
+                }
+                sockets.add(socket);
+            }
+            socket.connect();
+        } catch(IOException e) {
+            error = e;
+        } catch(RuntimeException e) {
+            // eg. a SecurityException without the connect permission, which
+            // would otherwise leave connect() waiting for this attempt
+            error = new IOException("Connect strategy "+strategy+" threw "+e, e);
+        }
+        if(error != null) {
+            synchronized(this) {
+                if(winner == null && !cancelled) {
+                    DebugLog.w(TAG, "Connect strategy {} failed - {}", strategy, error.getMessage());
+                    failed(strategy, System.currentTimeMillis() - start, error);
+                }
+            }
+            return;
+        }
+        long millis = System.currentTimeMillis() - start;
+        boolean won;
+        synchronized(this) {
+            won = winner == null && !cancelled;
+            if(won) {
+                winner = socket;
+                winningStrategy = strategy;
+                notifyAll();
+            }
+        }
+        if(won) {
+            stats.record(strategy.getName(), true, millis);
+            DebugLog.i(TAG, "Connect strategy {} won in {}ms", strategy, millis);
+            cancel();
+        } else {
+            try {socket.close();} catch(IOException e) {}
+        }
+    }
+
+    /* Locked */
+    private void failed(ConnectStrategy strategy, long millis, IOException e) {
+        stats.record(strategy.getName(), false, millis);
+        lastError = e;
+        failed += 1;
+        notifyAll();
+        startNext();
+    }
+}
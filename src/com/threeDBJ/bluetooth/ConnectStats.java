@@ -0,0 +1,85 @@
+package com.threeDBJ.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Success counts and connect times per ConnectStrategy, used to try the
+ * strategy most likely to connect fastest first.
+ */
+public class ConnectStats {
+    private final HashMap<String, Record> records = new HashMap<String, Record>();
+
+    private static class Record {
+        int attempts, successes;
+        long successMillis;
+
+        /* Expected time to a connection, weighing speed by success rate */
+        double cost() {
+            return (double)successMillis / successes * attempts / successes;
+        }
+    }
+
+    public synchronized void record(String name, boolean success, long millis) {
+        Record r = records.get(name);
+        if(r == null) {
+            r = new Record();
+            records.put(name, r);
+        }
+        r.attempts += 1;
+        if(success) {
+            r.successes += 1;
+            r.successMillis += millis;
+        }
+    }
+
+    public synchronized int getAttempts(String name) {
+        Record r = records.get(name);
+        return r == null ? 0 : r.attempts;
+    }
+
+    public synchronized int getSuccesses(String name) {
+        Record r = records.get(name);
+        return r == null ? 0 : r.successes;
+    }
+
+    /**
+     * @return The mean time of successful connects, or -1 if there were none
+     */
+    public synchronized long getMeanConnectMillis(String name) {
+        Record r = records.get(name);
+        return r == null || r.successes == 0 ? -1 : r.successMillis / r.successes;
+    }
+
+    public synchronized void reset() {
+        records.clear();
+    }
+
+    /**
+     * Order strategies by how soon they are expected to connect. Strategies
+     * that have connected come first, fastest expected first, then untried
+     * ones, then ones that never connected. Ties keep the given order.
+     */
+    public synchronized List<ConnectStrategy> order(List<ConnectStrategy> strategies) {
+        List<ConnectStrategy> ordered = new ArrayList<ConnectStrategy>(strategies);
+        Collections.sort(ordered, new Comparator<ConnectStrategy>() {
+                public int compare(ConnectStrategy a, ConnectStrategy b) {
+                    Record ra = records.get(a.getName());
+                    Record rb = records.get(b.getName());
+                    int ga = group(ra), gb = group(rb);
+                    if(ga != gb) return ga < gb ? -1 : 1;
+                    if(ga != 0) return 0;
+                    return Double.compare(ra.cost(), rb.cost());
+                }
+            });
+        return ordered;
+    }
+
+    private static int group(Record r) {
+        if(r == null) return 1;
+        return r.successes > 0 ? 0 : 2;
+    }
+}
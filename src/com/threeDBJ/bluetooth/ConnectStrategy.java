@@ -0,0 +1,64 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * One way of opening a socket to a device, eg. a secure or insecure RFCOMM
+ * socket to the service UUID, or an RFCOMM socket to a fixed channel for
+ * firmware without a usable SDP record.
+ *
+ * @see BluetoothService#setConnectStrategies(java.util.List, long)
+ */
+public abstract class ConnectStrategy {
+    public static final ConnectStrategy SECURE = new ConnectStrategy("Secure") {
+            public TransportSocket createSocket(Transport transport, String address) throws IOException {
+                return transport.createSocket(address, true);
+            }
+        };
+
+    public static final ConnectStrategy INSECURE = new ConnectStrategy("Insecure") {
+            public TransportSocket createSocket(Transport transport, String address) throws IOException {
+                return transport.createSocket(address, false);
+            }
+        };
+
+    private final String name;
+
+    protected ConnectStrategy(String name) {
+        this.name = name;
+    }
+
+    /**
+     * An RFCOMM socket to a fixed channel, bypassing the SDP lookup. Only
+     * works on an RfcommTransport.
+     * @param channel The RFCOMM channel, 1 to 30
+     */
+    public static ConnectStrategy channel(final int channel) {
+        return new ConnectStrategy("Channel" + channel) {
+                public TransportSocket createSocket(Transport transport, String address) throws IOException {
+                    if(!(transport instanceof RfcommTransport)) {
+                        throw new IOException("Fixed channels need an RfcommTransport");
+                    }
+                    return ((RfcommTransport)transport).createChannelSocket(address, channel);
+                }
+            };
+    }
+
+    /**
+     * The name the strategy's statistics are kept under. It is also the
+     * socket type the service logs and reports.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Create an unconnected socket to the device.
+     */
+    public abstract TransportSocket createSocket(Transport transport, String address) throws IOException;
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
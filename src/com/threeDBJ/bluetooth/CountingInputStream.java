@@ -0,0 +1,31 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from a socket into a connection's stats.
+ */
+class CountingInputStream extends FilterInputStream {
+    private final BluetoothStats stats;
+
+    CountingInputStream(InputStream in, BluetoothStats stats) {
+        super(in);
+        this.stats = stats;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if(b != -1) stats.bytesIn.incrementAndGet();
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if(n > 0) stats.bytesIn.addAndGet(n);
+        return n;
+    }
+}
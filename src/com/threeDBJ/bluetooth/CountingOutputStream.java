@@ -0,0 +1,38 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to a socket, and its flushes, into a
+ * connection's stats. Sits below any coalescing, so it sees what actually
+ * goes out.
+ */
+class CountingOutputStream extends FilterOutputStream {
+    private final BluetoothStats stats;
+
+    CountingOutputStream(OutputStream out, BluetoothStats stats) {
+        super(out);
+        this.stats = stats;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        stats.bytesOut.incrementAndGet();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // FilterOutputStream would write one byte at a time
+        out.write(b, off, len);
+        stats.bytesOut.addAndGet(len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+        stats.flushes.incrementAndGet();
+    }
+}
@@ -2,9 +2,32 @@ package com.threeDBJ.bluetooth;
 
 import android.util.Log;
 
+/**
+ * Logging for the library, with a master switch, a minimum level, and two
+ * sinks: logcat and an optional in-memory LogRingBuffer.
+ *
+ * Besides the usual (tag, msg) methods, each level takes a format with up
+ * to three arguments, each {} in the format replaced by the next argument.
+ * Nothing is formatted unless the level is logged, and messages kept in
+ * the ring buffer are only formatted when it is dumped, so these are
+ * cheap to leave in data paths:
+ *
+ *     DebugLog.d(TAG, "Frame {} out of order", frame.seq);
+ *
+ * A Throwable passed as the only argument is logged as the exception of a
+ * plain message.
+ */
 public final class DebugLog {
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
 
-    private static boolean loggingEnabled = true;
+    private static volatile boolean loggingEnabled = true;
+    private static volatile int minLevel = VERBOSE;
+    private static volatile boolean logcat = true;
+    private static volatile LogRingBuffer ringBuffer;
 
     private DebugLog() {
     }
@@ -13,91 +36,199 @@ public final class DebugLog {
         loggingEnabled = enabled;
     }
 
-    public static int v(String tag, String msg) {
-        int result = 0;
-        if (loggingEnabled) {
-            result = Log.v(tag, msg);
+    /**
+     * Only log messages at this level or above.
+     * @param level VERBOSE (default), DEBUG, INFO, WARN or ERROR
+     */
+    public static void setLevel(int level) {
+        minLevel = level;
+    }
+
+    public static int getLevel() {
+        return minLevel;
+    }
+
+    /**
+     * Whether to write messages to logcat, true by default. With logcat
+     * off and a ring buffer set, messages are only kept in memory.
+     */
+    public static void setLogcat(boolean enabled) {
+        logcat = enabled;
+    }
+
+    /**
+     * Also keep messages in a ring buffer, to be dumped on demand.
+     * @param buffer The buffer, or null to stop keeping messages
+     */
+    public static void setRingBuffer(LogRingBuffer buffer) {
+        ringBuffer = buffer;
+    }
+
+    public static LogRingBuffer getRingBuffer() {
+        return ringBuffer;
+    }
+
+    /**
+     * @return Whether a message at this level would be logged. Use to
+     *         guard logging that is costly to set up.
+     */
+    public static boolean isLoggable(int level) {
+        return loggingEnabled && level >= minLevel;
+    }
+
+    private static int log(int level, String tag, String format, int count,
+                           Object arg1, Object arg2, Object arg3, Throwable tr) {
+        if(!loggingEnabled || level < minLevel) return 0;
+        LogRingBuffer buffer = ringBuffer;
+        if(buffer != null) {
+            buffer.add(level, tag, format, count, arg1, arg2, arg3, tr);
+        }
+        if(!logcat) return 0;
+        String msg = count == 0 ? format : format(format, count, arg1, arg2, arg3);
+        if(tr != null) {
+            msg = msg == null ? Log.getStackTraceString(tr) : msg + '\n' + Log.getStackTraceString(tr);
         }
-        return result;
+        return Log.println(level, tag, msg);
     }
 
-    public static int v(String tag, String msg, Throwable tr) {
-        int result = 0;
-        if (loggingEnabled) {
-            result = Log.v(tag, msg, tr);
+    /**
+     * Replace the first count {} in format with the arguments.
+     */
+    static String format(String format, int count, Object arg1, Object arg2, Object arg3) {
+        StringBuilder b = new StringBuilder(format.length() + 16 * count);
+        int start = 0;
+        for(int i = 0; i < count; i++) {
+            int at = format.indexOf("{}", start);
+            if(at == -1) break;
+            b.append(format, start, at);
+            b.append(i == 0 ? arg1 : i == 1 ? arg2 : arg3);
+            start = at + 2;
         }
-        return result;
+        b.append(format, start, format.length());
+        return b.toString();
+    }
+
+    public static int v(String tag, String msg) {
+        return log(VERBOSE, tag, msg, 0, null, null, null, null);
+    }
+
+    public static int v(String tag, String msg, Throwable tr) {
+        return log(VERBOSE, tag, msg, 0, null, null, null, tr);
+    }
+
+    public static int v(String tag, String format, long arg) {
+        return isLoggable(VERBOSE) ? log(VERBOSE, tag, format, 1, arg, null, null, null) : 0;
+    }
+
+    public static int v(String tag, String format, Object arg) {
+        return log(VERBOSE, tag, format, 1, arg, null, null, null);
+    }
+
+    public static int v(String tag, String format, Object arg1, Object arg2) {
+        return log(VERBOSE, tag, format, 2, arg1, arg2, null, null);
+    }
+
+    public static int v(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        return log(VERBOSE, tag, format, 3, arg1, arg2, arg3, null);
     }
 
     public static int d(String tag, String msg) {
-        int result = 0;
-        if (loggingEnabled) {
-            result = Log.d(tag, msg);
-        }
-        return result;
+        return log(DEBUG, tag, msg, 0, null, null, null, null);
     }
 
     public static int d(String tag, String msg, Throwable tr) {
-    	int result = 0;
-        if (loggingEnabled) {
-            result = Log.d(tag, msg, tr);
-        }
-        return result;
+        return log(DEBUG, tag, msg, 0, null, null, null, tr);
+    }
+
+    public static int d(String tag, String format, long arg) {
+        return isLoggable(DEBUG) ? log(DEBUG, tag, format, 1, arg, null, null, null) : 0;
+    }
+
+    public static int d(String tag, String format, Object arg) {
+        return log(DEBUG, tag, format, 1, arg, null, null, null);
+    }
+
+    public static int d(String tag, String format, Object arg1, Object arg2) {
+        return log(DEBUG, tag, format, 2, arg1, arg2, null, null);
+    }
+
+    public static int d(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        return log(DEBUG, tag, format, 3, arg1, arg2, arg3, null);
     }
 
     public static int i(String tag, String msg) {
-    	int result = 0;
-        if (loggingEnabled) {
-            result = Log.i(tag, msg);
-        }
-        return result;
+        return log(INFO, tag, msg, 0, null, null, null, null);
     }
 
     public static int i(String tag, String msg, Throwable tr) {
-    	int result = 0;
-        if (loggingEnabled) {
-            result = Log.i(tag, msg, tr);
-        }
-        return result;
+        return log(INFO, tag, msg, 0, null, null, null, tr);
+    }
+
+    public static int i(String tag, String format, long arg) {
+        return isLoggable(INFO) ? log(INFO, tag, format, 1, arg, null, null, null) : 0;
+    }
+
+    public static int i(String tag, String format, Object arg) {
+        return log(INFO, tag, format, 1, arg, null, null, null);
+    }
+
+    public static int i(String tag, String format, Object arg1, Object arg2) {
+        return log(INFO, tag, format, 2, arg1, arg2, null, null);
+    }
+
+    public static int i(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        return log(INFO, tag, format, 3, arg1, arg2, arg3, null);
     }
 
     public static int w(String tag, String msg) {
-    	int result = 0;
-        if (loggingEnabled) {
-            result = Log.w(tag, msg);
-        }
-        return result;
+        return log(WARN, tag, msg, 0, null, null, null, null);
     }
 
     public static int w(String tag, String msg, Throwable tr) {
-    	int result = 0;
-        if (loggingEnabled) {
-            result = Log.w(tag, msg, tr);
-        }
-        return result;
+        return log(WARN, tag, msg, 0, null, null, null, tr);
     }
 
     public static int w(String tag, Throwable tr) {
-    	int result = 0;
-        if (loggingEnabled) {
-            result = Log.w(tag, tr);
-        }
-        return result;
+        return log(WARN, tag, null, 0, null, null, null, tr);
+    }
+
+    public static int w(String tag, String format, long arg) {
+        return isLoggable(WARN) ? log(WARN, tag, format, 1, arg, null, null, null) : 0;
+    }
+
+    public static int w(String tag, String format, Object arg) {
+        return log(WARN, tag, format, 1, arg, null, null, null);
+    }
+
+    public static int w(String tag, String format, Object arg1, Object arg2) {
+        return log(WARN, tag, format, 2, arg1, arg2, null, null);
+    }
+
+    public static int w(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        return log(WARN, tag, format, 3, arg1, arg2, arg3, null);
     }
 
     public static int e(String tag, String msg) {
-    	int result = 0;
-        if (loggingEnabled) {
-            result = Log.e(tag, msg);
-        }
-        return result;
+        return log(ERROR, tag, msg, 0, null, null, null, null);
     }
 
     public static int e(String tag, String msg, Throwable tr) {
-    	int result = 0;
-        if (loggingEnabled) {
-            result = Log.e(tag, msg, tr);
-        }
-        return result;
+        return log(ERROR, tag, msg, 0, null, null, null, tr);
+    }
+
+    public static int e(String tag, String format, long arg) {
+        return isLoggable(ERROR) ? log(ERROR, tag, format, 1, arg, null, null, null) : 0;
+    }
+
+    public static int e(String tag, String format, Object arg) {
+        return log(ERROR, tag, format, 1, arg, null, null, null);
+    }
+
+    public static int e(String tag, String format, Object arg1, Object arg2) {
+        return log(ERROR, tag, format, 2, arg1, arg2, null, null);
+    }
+
+    public static int e(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        return log(ERROR, tag, format, 3, arg1, arg2, arg3, null);
     }
 }
@@ -0,0 +1,15 @@
+package com.threeDBJ.bluetooth;
+
+/**
+ * Decides which discovered devices DeviceIndex lists, and which a
+ * DeviceRanking puts first.
+ *
+ * @see DeviceFilters
+ */
+public interface DeviceFilter {
+    /**
+     * Called on the index's thread, so it should be quick.
+     * @return Whether the device passes
+     */
+    public boolean accept(DeviceIndex.Entry entry);
+}
@@ -0,0 +1,122 @@
+package com.threeDBJ.bluetooth;
+
+import java.util.regex.Pattern;
+
+/**
+ * Common DeviceFilters, for DeviceIndex.setFilter() and
+ * DeviceRanking.first():
+ *
+ *     index.setFilter(DeviceFilters.all(DeviceFilters.named(), DeviceFilters.minRssi(-90)));
+ */
+public final class DeviceFilters {
+    /* BluetoothClass.Device.Major.BITMASK */
+    private static final int MAJOR_CLASS_MASK = 0x1F00;
+
+    private DeviceFilters() {
+    }
+
+    /**
+     * Devices with a known name.
+     */
+    public static DeviceFilter named() {
+        return new DeviceFilter() {
+            public boolean accept(DeviceIndex.Entry entry) {
+                return entry.name != null;
+            }
+        };
+    }
+
+    /**
+     * Devices whose name contains a match of the pattern. Anchor it with ^
+     * to match the start of the name.
+     */
+    public static DeviceFilter namePattern(final Pattern pattern) {
+        return new DeviceFilter() {
+            public boolean accept(DeviceIndex.Entry entry) {
+                return entry.name != null && pattern.matcher(entry.name).find();
+            }
+        };
+    }
+
+    public static DeviceFilter namePrefix(final String prefix) {
+        return new DeviceFilter() {
+            public boolean accept(DeviceIndex.Entry entry) {
+                return entry.name != null && entry.name.startsWith(prefix);
+            }
+        };
+    }
+
+    /**
+     * Devices of a major class, eg. BluetoothClass.Device.Major.HEALTH.
+     * Devices whose class isn't known don't pass.
+     */
+    public static DeviceFilter majorClass(final int majorClass) {
+        return new DeviceFilter() {
+            public boolean accept(DeviceIndex.Entry entry) {
+                return entry.deviceClass != DiscoveryCache.CLASS_UNKNOWN
+                    && (entry.deviceClass & MAJOR_CLASS_MASK) == majorClass;
+            }
+        };
+    }
+
+    /**
+     * Devices last seen with at least this signal strength. Devices whose
+     * strength isn't known pass.
+     */
+    public static DeviceFilter minRssi(final int dbm) {
+        return new DeviceFilter() {
+            public boolean accept(DeviceIndex.Entry entry) {
+                return entry.rssi == DiscoveryCache.RSSI_UNKNOWN || entry.rssi >= dbm;
+            }
+        };
+    }
+
+    /**
+     * Devices bonded with this one when they were found.
+     */
+    public static DeviceFilter bonded() {
+        return new DeviceFilter() {
+            public boolean accept(DeviceIndex.Entry entry) {
+                return entry.bonded;
+            }
+        };
+    }
+
+    /**
+     * Devices found by the running discovery, not only remembered by a
+     * DiscoveryCache.
+     */
+    public static DeviceFilter live() {
+        return new DeviceFilter() {
+            public boolean accept(DeviceIndex.Entry entry) {
+                return entry.live;
+            }
+        };
+    }
+
+    /**
+     * Devices seen in the last ms milliseconds. Only for use as a filter,
+     * a ranking can't depend on the time.
+     */
+    public static DeviceFilter seenWithin(final long ms) {
+        return new DeviceFilter() {
+            public boolean accept(DeviceIndex.Entry entry) {
+                return entry.lastSeen >= System.currentTimeMillis() - ms;
+            }
+        };
+    }
+
+    /**
+     * Devices that pass every one of the filters.
+     */
+    public static DeviceFilter all(final DeviceFilter... filters) {
+        return new DeviceFilter() {
+            public boolean accept(DeviceIndex.Entry entry) {
+                for(DeviceFilter filter : filters) {
+                    if(!filter.accept(entry)) return false;
+                }
+                return true;
+            }
+        };
+    }
+}
@@ -0,0 +1,379 @@
+package com.threeDBJ.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The devices found by discovery, as listed by the discovery activity and
+ * fragment. Devices are kept by address, so a device found again is only
+ * listed once, under its latest name.
+ *
+ * Found devices are gathered and added to the list together, at most once
+ * per update interval, with one call to the listener. Back an adapter with
+ * getDevices() and call notifyDataSetChanged() from the listener, so a
+ * crowd of devices found at once costs one pass over the list instead of
+ * one per device.
+ *
+ * Only devices that pass the filter are listed, in the order of the
+ * ranking. The list is kept in order as devices are added and refreshed,
+ * each finding its place with a binary search, so it is never sorted
+ * whole except when the ranking is changed. Set the filter and ranking of
+ * the discovery activity and fragment with setDefaultFilter() and
+ * setDefaultRanking() before they are shown.
+ *
+ * With a DiscoveryCache, the devices seen by recent discoveries are listed
+ * as soon as the cache is loaded, and what discovery finds is kept in it.
+ *
+ * Not thread safe, use it on the thread of the Handler it is given, eg.
+ * the main thread from a discovery BroadcastReceiver.
+ */
+public class DeviceIndex {
+    private static final String TAG = "BTAndroid";
+
+    public static final long DEFAULT_UPDATE_INTERVAL_MS = 250;
+
+    private static DeviceFilter defaultFilter;
+    private static DeviceRanking defaultRanking = DeviceRanking.standard();
+
+    public interface Listener {
+        /**
+         * Devices were added to the list, renamed, moved or removed.
+         */
+        public void devicesChanged(DeviceIndex index);
+    }
+
+    /**
+     * A found device. toString() gives the name and address on two lines,
+     * for use with an ArrayAdapter.
+     */
+    public static class Entry {
+        public final BluetoothDevice device;
+        public final String address;
+        String name;
+        String display;
+        int rssi;
+        long lastSeen;
+        // Found by this discovery, not only remembered by the cache
+        boolean live;
+        int deviceClass;
+        boolean bonded;
+        // Order found in, ranks devices the ranking can't tell apart
+        final long order;
+        // Copy of the entry as it was ranked when listed, null when not listed
+        Entry ranked;
+        // Waiting for the next update to be listed, moved or removed
+        boolean dirty;
+
+        Entry(BluetoothDevice device, long order) {
+            this.device = device;
+            this.address = device.getAddress();
+            this.order = order;
+        }
+
+        private Entry(Entry e) {
+            this(e.device, e.order);
+            name = e.name;
+            display = e.display;
+            rssi = e.rssi;
+            lastSeen = e.lastSeen;
+            live = e.live;
+            deviceClass = e.deviceClass;
+            bonded = e.bonded;
+        }
+
+        void setName(String name) {
+            this.name = name;
+            display = name + "\n" + address;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Signal strength in dBm, or DiscoveryCache.RSSI_UNKNOWN
+         */
+        public int getRssi() {
+            return rssi;
+        }
+
+        /**
+         * @return When the device was last seen, in ms since the epoch
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        /**
+         * @return false if the device is only listed from the cache, and
+         *         discovery hasn't found it yet
+         */
+        public boolean isLive() {
+            return live;
+        }
+
+        /**
+         * @return BluetoothClass.getDeviceClass(), or
+         *         DiscoveryCache.CLASS_UNKNOWN
+         */
+        public int getDeviceClass() {
+            return deviceClass;
+        }
+
+        /**
+         * @return Whether the device was bonded when it was found
+         */
+        public boolean isBonded() {
+            return bonded;
+        }
+
+        @Override
+        public String toString() {
+            return display;
+        }
+    }
+
+    private final Handler handler;
+    private final long intervalMs;
+    private Listener listener;
+    private DeviceFilter filter = defaultFilter;
+    private DeviceRanking ranking = defaultRanking;
+    private final HashMap<String, Entry> byAddress = new HashMap<String, Entry>();
+    // Listed devices, in order of rank
+    private final ArrayList<Entry> devices = new ArrayList<Entry>();
+    // Found or refreshed since the last update
+    private final ArrayList<Entry> dirty = new ArrayList<Entry>();
+    private long nextOrder;
+    private DiscoveryCache cache;
+    // Counts clear() calls, to drop cache loads started before one
+    private int generation;
+    private boolean updateScheduled;
+    private long lastUpdate;
+
+    /* Orders listed entries by the values they were ranked with, so an
+       entry refreshed since can still be found by a binary search */
+    private final Comparator<Entry> listOrder = new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                int c = ranking.compare(a.ranked, b.ranked);
+                if(c != 0) return c;
+                return a.order < b.order ? -1 : a.order > b.order ? 1 : 0;
+            }
+        };
+
+    private final Runnable updateTask = new Runnable() {
+            public void run() {
+                updateScheduled = false;
+                update();
+            }
+        };
+
+    public DeviceIndex(Handler handler) {
+        this(handler, DEFAULT_UPDATE_INTERVAL_MS);
+    }
+
+    /**
+     * @param handler Handler of the thread the index is used on
+     * @param intervalMs Shortest time between updates of the list
+     */
+    public DeviceIndex(Handler handler, long intervalMs) {
+        this.handler = handler;
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * Set the filter of indexes made from now on, eg. those of the
+     * discovery activity and fragment. Call from the main thread.
+     * @param filter The filter, or null to list every device
+     */
+    public static void setDefaultFilter(DeviceFilter filter) {
+        defaultFilter = filter;
+    }
+
+    /**
+     * Set the ranking of indexes made from now on, eg. those of the
+     * discovery activity and fragment. Call from the main thread.
+     * @param ranking The ranking, or null for DeviceRanking.standard()
+     */
+    public static void setDefaultRanking(DeviceRanking ranking) {
+        defaultRanking = ranking != null ? ranking : DeviceRanking.standard();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * List only the devices that pass the filter, from the next update.
+     * @param filter The filter, or null to list every device
+     */
+    public void setFilter(DeviceFilter filter) {
+        this.filter = filter;
+        for(Entry entry : byAddress.values()) markDirty(entry);
+    }
+
+    /**
+     * Order the list by the ranking, from the next update.
+     * @param ranking The ranking, or null for DeviceRanking.standard()
+     */
+    public void setRanking(DeviceRanking ranking) {
+        this.ranking = ranking != null ? ranking : DeviceRanking.standard();
+        Collections.sort(devices, listOrder);
+        if(listener != null) listener.devicesChanged(this);
+    }
+
+    /**
+     * The listed devices, in order of rank, changed only by the index.
+     */
+    public List<Entry> getDevices() {
+        return devices;
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    public Entry get(int position) {
+        return devices.get(position);
+    }
+
+    /**
+     * @return The device with this address, listed, waiting to be or
+     *         filtered out, or null
+     */
+    public Entry find(String address) {
+        return byAddress.get(address);
+    }
+
+    public void found(BluetoothDevice device) {
+        found(device, DiscoveryCache.RSSI_UNKNOWN, DiscoveryCache.CLASS_UNKNOWN);
+    }
+
+    /**
+     * Add a found device, or refresh it if it's known. The list is updated
+     * later.
+     * @param rssi BluetoothDevice.EXTRA_RSSI of the broadcast, or
+     *             DiscoveryCache.RSSI_UNKNOWN
+     * @param deviceClass The BluetoothClass.getDeviceClass() of
+     *                    BluetoothDevice.EXTRA_CLASS, or
+     *                    DiscoveryCache.CLASS_UNKNOWN
+     */
+    public void found(BluetoothDevice device, int rssi, int deviceClass) {
+        String name = device.getName();
+        if(cache != null) cache.seen(device.getAddress(), name, rssi, deviceClass);
+        Entry entry = byAddress.get(device.getAddress());
+        if(entry == null) {
+            entry = newEntry(device);
+            DebugLog.v(TAG, "Found device: {}", device.getAddress());
+        }
+        // Names are often only known from a later broadcast
+        if(name != null || entry.name == null) entry.setName(name);
+        if(rssi != DiscoveryCache.RSSI_UNKNOWN) entry.rssi = rssi;
+        if(deviceClass != DiscoveryCache.CLASS_UNKNOWN) entry.deviceClass = deviceClass;
+        entry.lastSeen = System.currentTimeMillis();
+        entry.live = true;
+        markDirty(entry);
+    }
+
+    /**
+     * List the devices in the cache until discovery finds them, and keep
+     * what discovery finds in it. The cache is loaded in the background,
+     * and its devices listed with the next update after.
+     * @param adapter The adapter to get the cached devices from
+     */
+    public void loadCache(DiscoveryCache cache, final BluetoothAdapter adapter) {
+        this.cache = cache;
+        final int loadGeneration = generation;
+        cache.load(new DiscoveryCache.Listener() {
+                public void loaded(List<DiscoveryCache.Record> records) {
+                    if(loadGeneration != generation) return;
+                    for(DiscoveryCache.Record r : records) {
+                        if(byAddress.containsKey(r.address)) continue;
+                        Entry entry = newEntry(adapter.getRemoteDevice(r.address));
+                        entry.setName(r.name);
+                        entry.rssi = r.rssi;
+                        entry.deviceClass = r.deviceClass;
+                        entry.lastSeen = r.lastSeen;
+                        markDirty(entry);
+                    }
+                    DebugLog.d(TAG, "{} devices from the discovery cache", records.size());
+                }
+            });
+    }
+
+    private Entry newEntry(BluetoothDevice device) {
+        Entry entry = new Entry(device, nextOrder++);
+        entry.bonded = BondedDeviceCache.getInstance().get(entry.address) != null;
+        entry.rssi = DiscoveryCache.RSSI_UNKNOWN;
+        entry.deviceClass = DiscoveryCache.CLASS_UNKNOWN;
+        byAddress.put(entry.address, entry);
+        return entry;
+    }
+
+    private void markDirty(Entry entry) {
+        if(entry.dirty) return;
+        entry.dirty = true;
+        dirty.add(entry);
+        scheduleUpdate();
+    }
+
+    private void scheduleUpdate() {
+        if(updateScheduled) return;
+        updateScheduled = true;
+        long wait = lastUpdate + intervalMs - SystemClock.uptimeMillis();
+        handler.postDelayed(updateTask, Math.max(wait, 0));
+    }
+
+    /**
+     * Bring the list up to date with the devices found and refreshed since
+     * the last update now.
+     */
+    public void update() {
+        if(updateScheduled) {
+            handler.removeCallbacks(updateTask);
+            updateScheduled = false;
+        }
+        lastUpdate = SystemClock.uptimeMillis();
+        if(dirty.isEmpty()) return;
+        int listed = 0, removed = 0;
+        for(Entry entry : dirty) {
+            entry.dirty = false;
+            if(entry.ranked != null) {
+                devices.remove(Collections.binarySearch(devices, entry, listOrder));
+                entry.ranked = null;
+                removed += 1;
+            }
+            if(filter == null || filter.accept(entry)) {
+                entry.ranked = new Entry(entry);
+                devices.add(-Collections.binarySearch(devices, entry, listOrder) - 1, entry);
+                listed += 1;
+            }
+        }
+        DebugLog.v(TAG, "Updated devices, {} listed, {} unlisted, {} in all", listed, removed, devices.size());
+        dirty.clear();
+        if(listener != null) listener.devicesChanged(this);
+    }
+
+    /**
+     * Forget every device, including those of a cache load still running.
+     * The cache is kept up to date with what is found after.
+     */
+    public void clear() {
+        if(updateScheduled) {
+            handler.removeCallbacks(updateTask);
+            updateScheduled = false;
+        }
+        byAddress.clear();
+        devices.clear();
+        dirty.clear();
+        generation += 1;
+        if(listener != null) listener.devicesChanged(this);
+    }
+}
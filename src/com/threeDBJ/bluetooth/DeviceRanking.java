@@ -0,0 +1,92 @@
+package com.threeDBJ.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+
+/**
+ * The order DeviceIndex lists devices in, made of criteria applied in the
+ * order they were added, each only breaking ties of the ones before:
+ *
+ *     new DeviceRanking()
+ *         .first(DeviceFilters.namePrefix("Podo"))
+ *         .bondedFirst()
+ *         .strongestFirst();
+ *
+ * Devices the criteria can't tell apart are listed in the order they were
+ * found. Criteria see the values of a device as of the last update of the
+ * index, and must not depend on anything else that changes.
+ */
+public class DeviceRanking implements Comparator<DeviceIndex.Entry> {
+    private final ArrayList<Comparator<DeviceIndex.Entry>> criteria = new ArrayList<Comparator<DeviceIndex.Entry>>();
+
+    /**
+     * The ranking DeviceIndex uses by default: devices found by the
+     * running discovery first, then by signal strength, then by how
+     * recently they were seen.
+     */
+    public static DeviceRanking standard() {
+        return new DeviceRanking().liveFirst().strongestFirst().recentFirst();
+    }
+
+    /**
+     * Devices that pass the filter before those that don't.
+     */
+    public DeviceRanking first(final DeviceFilter filter) {
+        return then(new Comparator<DeviceIndex.Entry>() {
+                public int compare(DeviceIndex.Entry a, DeviceIndex.Entry b) {
+                    boolean acceptA = filter.accept(a);
+                    return acceptA == filter.accept(b) ? 0 : acceptA ? -1 : 1;
+                }
+            });
+    }
+
+    public DeviceRanking bondedFirst() {
+        return first(DeviceFilters.bonded());
+    }
+
+    /**
+     * Devices found by the running discovery before those only remembered
+     * by a DiscoveryCache.
+     */
+    public DeviceRanking liveFirst() {
+        return first(DeviceFilters.live());
+    }
+
+    /**
+     * Strongest signal first, devices whose strength isn't known last.
+     */
+    public DeviceRanking strongestFirst() {
+        return then(new Comparator<DeviceIndex.Entry>() {
+                public int compare(DeviceIndex.Entry a, DeviceIndex.Entry b) {
+                    return b.rssi - a.rssi;
+                }
+            });
+    }
+
+    /**
+     * Most recently seen first.
+     */
+    public DeviceRanking recentFirst() {
+        return then(new Comparator<DeviceIndex.Entry>() {
+                public int compare(DeviceIndex.Entry a, DeviceIndex.Entry b) {
+                    return a.lastSeen > b.lastSeen ? -1 : a.lastSeen < b.lastSeen ? 1 : 0;
+                }
+            });
+    }
+
+    /**
+     * Add a criterion of your own.
+     */
+    public DeviceRanking then(Comparator<DeviceIndex.Entry> criterion) {
+        criteria.add(criterion);
+        return this;
+    }
+
+    public int compare(DeviceIndex.Entry a, DeviceIndex.Entry b) {
+        for(int i = 0; i < criteria.size(); i++) {
+            int c = criteria.get(i).compare(a, b);
+            if(c != 0) return c;
+        }
+        return 0;
+    }
+}
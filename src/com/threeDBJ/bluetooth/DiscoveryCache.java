@@ -0,0 +1,274 @@
+package com.threeDBJ.bluetooth;
+
+import android.content.Context;
+import android.os.AsyncTask;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Devices seen by recent discoveries, kept in a small file in the cache
+ * directory, so the device pickers can list them straight away instead of
+ * after the seconds an inquiry takes. Devices not seen for longer than the
+ * time to live are dropped.
+ *
+ * The file is read and written in the background, with load() and save().
+ * The other methods only touch memory and can be called from any thread.
+ */
+public class DiscoveryCache {
+    private static final String TAG = "BTAndroid";
+    private static final String FILE_NAME = "bluetooth_devices";
+    private static final int VERSION = 2;
+    private static DiscoveryCache instance;
+
+    public static final long DEFAULT_TTL_MS = 60 * 60 * 1000;
+    /* Most devices kept, the least recently seen are dropped first */
+    public static final int MAX_DEVICES = 256;
+    /* RSSI of a device found without one */
+    public static final int RSSI_UNKNOWN = Short.MIN_VALUE;
+    /* Class of a device found without one */
+    public static final int CLASS_UNKNOWN = -1;
+
+    public interface Listener {
+        /**
+         * Called on the main thread once the cache is loaded.
+         * @param devices The devices in the cache, most recently seen first
+         */
+        public void loaded(List<Record> devices);
+    }
+
+    public static class Record {
+        public final String address;
+        /* The device's name, or null if it wasn't known */
+        public final String name;
+        /* Signal strength in dBm when last seen, or RSSI_UNKNOWN */
+        public final int rssi;
+        /* When the device was last seen, in ms since the epoch */
+        public final long lastSeen;
+        /* BluetoothClass.getDeviceClass(), or CLASS_UNKNOWN */
+        public final int deviceClass;
+
+        public Record(String address, String name, int rssi, long lastSeen, int deviceClass) {
+            this.address = address;
+            this.name = name;
+            this.rssi = rssi;
+            this.lastSeen = lastSeen;
+            this.deviceClass = deviceClass;
+        }
+    }
+
+    private final File file;
+    private volatile long ttlMs = DEFAULT_TTL_MS;
+    // In order of last seen, oldest first
+    private final LinkedHashMap<String, Record> devices = new LinkedHashMap<String, Record>();
+    private boolean loaded;
+    private boolean dirty;
+
+    public DiscoveryCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return The cache kept in the application's cache directory
+     */
+    public static synchronized DiscoveryCache getInstance(Context context) {
+        if(instance == null) {
+            instance = new DiscoveryCache(new File(context.getApplicationContext().getCacheDir(), FILE_NAME));
+        }
+        return instance;
+    }
+
+    /**
+     * @param ttlMs How long after it was last seen a device is dropped
+     */
+    public void setTtl(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    public long getTtl() {
+        return ttlMs;
+    }
+
+    /**
+     * Note a device found by discovery.
+     */
+    public synchronized void seen(String address, String name, int rssi, int deviceClass) {
+        Record old = devices.remove(address);
+        if(old != null) {
+            if(name == null) name = old.name;
+            if(deviceClass == CLASS_UNKNOWN) deviceClass = old.deviceClass;
+        }
+        devices.put(address, new Record(address, name, rssi, System.currentTimeMillis(), deviceClass));
+        trim();
+        dirty = true;
+    }
+
+    /**
+     * @return The devices seen within the time to live, most recently
+     *         seen first
+     */
+    public synchronized List<Record> getDevices() {
+        evict();
+        ArrayList<Record> list = new ArrayList<Record>(devices.values());
+        Collections.reverse(list);
+        return list;
+    }
+
+    /**
+     * Read the file in the background, if it hasn't been, and pass the
+     * devices to the listener.
+     */
+    public void load(final Listener listener) {
+        boolean read;
+        synchronized(this) {
+            read = loaded;
+        }
+        if(read) {
+            listener.loaded(getDevices());
+            return;
+        }
+        new AsyncTask<Void, Void, List<Record>>() {
+            @Override
+            protected List<Record> doInBackground(Void... params) {
+                LinkedHashMap<String, Record> saved = read();
+                synchronized(DiscoveryCache.this) {
+                    if(!loaded) {
+                        // Devices seen while loading are newer
+                        for(Record r : devices.values()) {
+                            saved.remove(r.address);
+                            saved.put(r.address, r);
+                        }
+                        devices.clear();
+                        devices.putAll(saved);
+                        trim();
+                        loaded = true;
+                    }
+                }
+                return getDevices();
+            }
+
+            @Override
+            protected void onPostExecute(List<Record> devices) {
+                listener.loaded(devices);
+            }
+        }.execute();
+    }
+
+    /**
+     * Write the devices seen since the last save to the file, in the
+     * background.
+     */
+    public void save() {
+        synchronized(this) {
+            if(!dirty) return;
+        }
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                write();
+                return null;
+            }
+        }.execute();
+    }
+
+    private void trim() {
+        Iterator<String> oldest = devices.keySet().iterator();
+        for(int n = devices.size(); n > MAX_DEVICES; n--) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    private void evict() {
+        long oldest = System.currentTimeMillis() - ttlMs;
+        Iterator<Record> it = devices.values().iterator();
+        while(it.hasNext()) {
+            if(it.next().lastSeen >= oldest) break;
+            it.remove();
+            dirty = true;
+        }
+    }
+
+    /**
+     * @return The devices in the file, oldest first like devices
+     */
+    private LinkedHashMap<String, Record> read() {
+        LinkedHashMap<String, Record> saved = new LinkedHashMap<String, Record>();
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch(FileNotFoundException e) {
+            return saved;
+        }
+        try {
+            int version = in.readInt();
+            if(version != VERSION) {
+                DebugLog.w(TAG, "Ignoring discovery cache version {}", version);
+                return saved;
+            }
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                String name = in.readBoolean() ? in.readUTF() : null;
+                int rssi = in.readShort();
+                long lastSeen = in.readLong();
+                int deviceClass = in.readInt();
+                saved.put(address, new Record(address, name, rssi, lastSeen, deviceClass));
+            }
+        } catch(IOException e) {
+            DebugLog.w(TAG, "Can't read discovery cache", e);
+        } finally {
+            try {
+                in.close();
+            } catch(IOException e) {}
+        }
+        return saved;
+    }
+
+    private void write() {
+        ArrayList<Record> list;
+        synchronized(this) {
+            evict();
+            list = new ArrayList<Record>(devices.values());
+            dirty = false;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(VERSION);
+                out.writeInt(list.size());
+                for(Record r : list) {
+                    out.writeUTF(r.address);
+                    out.writeBoolean(r.name != null);
+                    if(r.name != null) out.writeUTF(r.name);
+                    out.writeShort(r.rssi);
+                    out.writeLong(r.lastSeen);
+                    out.writeInt(r.deviceClass);
+                }
+            } finally {
+                out.close();
+            }
+            // Replace the file whole, so a crash can't leave half of it
+            if(!temp.renameTo(file)) throw new IOException("Can't rename "+temp);
+        } catch(IOException e) {
+            DebugLog.w(TAG, "Can't write discovery cache", e);
+            temp.delete();
+            synchronized(this) {
+                dirty = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.threeDBJ.bluetooth;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Passes a service's events to a BluetoothEventListener, as tasks on an
+ * executor, or without one in order on the service's threads. The
+ * listener is never called holding the service's lock: events raised with
+ * it held are queued, and delivered by the service's timer thread unless
+ * a thread already delivering events gets to them first.
+ */
+final class EventDispatcher implements BluetoothEventListener {
+    private static final String TAG = "BTAndroid";
+
+    static final int STATE_CHANGED = 0;
+    static final int PEER_STATE_CHANGED = 1;
+    static final int DEVICE_CONNECTED = 2;
+    static final int CONNECTION_FAILED = 3;
+    static final int CONNECTION_LOST = 4;
+    static final int RECONNECTING = 5;
+    static final int TRANSFER_PROGRESS = 6;
+
+    /**
+     * An event on its way to the listener.
+     */
+    private final class Event implements Runnable {
+        final int type;
+        String address, name;
+        int arg;
+        long value, length;
+        boolean complete;
+
+        Event(int type) {
+            this.type = type;
+        }
+
+        public void run() {
+            switch(type) {
+            case STATE_CHANGED:
+                listener.stateChanged(arg);
+                break;
+            case PEER_STATE_CHANGED:
+                listener.peerStateChanged(address, arg);
+                break;
+            case DEVICE_CONNECTED:
+                listener.deviceConnected(address, name);
+                break;
+            case CONNECTION_FAILED:
+                listener.connectionFailed(address);
+                break;
+            case CONNECTION_LOST:
+                listener.connectionLost(address);
+                break;
+            case RECONNECTING:
+                listener.reconnecting(address, arg, value);
+                break;
+            case TRANSFER_PROGRESS:
+                listener.transferProgress(address, arg, value, length, complete);
+                break;
+            }
+        }
+    }
+
+    private final BluetoothService service;
+    private final BluetoothEventListener listener;
+    private final Executor executor;
+    // Events waiting for delivery without an executor, guarded by itself
+    private final ArrayDeque<Event> pending = new ArrayDeque<Event>();
+    private boolean delivering;
+
+    private final Runnable deliverTask = new Runnable() {
+            public void run() {
+                deliver();
+            }
+        };
+
+    EventDispatcher(BluetoothService service, BluetoothEventListener listener, Executor executor) {
+        this.service = service;
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    private void dispatch(Event event) {
+        if(executor != null) {
+            try {
+                executor.execute(event);
+            } catch(RejectedExecutionException e) {
+                DebugLog.w(TAG, "Event dropped, executor rejected it");
+            }
+            return;
+        }
+        synchronized(pending) {
+            pending.add(event);
+            if(delivering) return;
+            delivering = true;
+        }
+        if(!Thread.holdsLock(service)) {
+            deliver();
+            return;
+        }
+        try {
+            service.getScheduler().execute(deliverTask);
+        } catch(RejectedExecutionException e) {
+            DebugLog.w(TAG, "Events dropped, timer rejected them");
+            synchronized(pending) {
+                pending.clear();
+                delivering = false;
+            }
+        }
+    }
+
+    /**
+     * Deliver the pending events, including any queued meanwhile.
+     */
+    private void deliver() {
+        while(true) {
+            Event event;
+            synchronized(pending) {
+                event = pending.poll();
+                if(event == null) {
+                    delivering = false;
+                    return;
+                }
+            }
+            try {
+                event.run();
+            } catch(RuntimeException e) {
+                DebugLog.e(TAG, "Event listener failed", e);
+            }
+        }
+    }
+
+    public void stateChanged(int state) {
+        Event event = new Event(STATE_CHANGED);
+        event.arg = state;
+        dispatch(event);
+    }
+
+    public void peerStateChanged(String address, int state) {
+        Event event = new Event(PEER_STATE_CHANGED);
+        event.address = address;
+        event.arg = state;
+        dispatch(event);
+    }
+
+    public void deviceConnected(String address, String name) {
+        Event event = new Event(DEVICE_CONNECTED);
+        event.address = address;
+        event.name = name;
+        dispatch(event);
+    }
+
+    public void connectionFailed(String address) {
+        Event event = new Event(CONNECTION_FAILED);
+        event.address = address;
+        dispatch(event);
+    }
+
+    public void connectionLost(String address) {
+        Event event = new Event(CONNECTION_LOST);
+        event.address = address;
+        dispatch(event);
+    }
+
+    public void reconnecting(String address, int attempt, long delayMs) {
+        Event event = new Event(RECONNECTING);
+        event.address = address;
+        event.arg = attempt;
+        event.value = delayMs;
+        dispatch(event);
+    }
+
+    public void transferProgress(String address, int id, long offset, long length, boolean complete) {
+        Event event = new Event(TRANSFER_PROGRESS);
+        event.address = address;
+        event.arg = id;
+        event.value = offset;
+        event.length = length;
+        event.complete = complete;
+        dispatch(event);
+    }
+}
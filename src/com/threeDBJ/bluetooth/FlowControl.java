@@ -0,0 +1,213 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * Credit based flow control for one connection, using sequenced frames and
+ * LINE_ACK / LINE_NACK control frames.
+ *
+ * The sender numbers each message it sends and keeps a copy of the encoded
+ * frame until it is acked. It may have as many unacked frames in flight as
+ * the receiver last granted credits, up to its own window, and blocks when
+ * it runs out.
+ *
+ * The receiver acks once half its window has been delivered to the client,
+ * or when the link goes idle, with the next sequence number it expects and
+ * the credits it grants past it. Since acks are sent after the client has
+ * handled the frames, a slow client slows the sender down. A frame that
+ * arrives out of order is dropped and NACKed with the expected sequence
+ * number, and the sender resends everything from there.
+ *
+ * Control payloads are two varints, the sequence number and the credits.
+ */
+class FlowControl {
+    public static final int DEFAULT_WINDOW = 16;
+
+    /* What to do with a received sequenced frame */
+    static final int DELIVER = 0;
+    static final int DROP = 1;
+    static final int NACK = 2;
+
+    // Sender state, guarded by this. Sequence numbers wrap, so they are
+    // only compared by subtraction.
+    private final int capacity;
+    // Retained frames are indexed by the low bits of their sequence
+    // number, so there is a power of two of slots to stay in order when
+    // the sequence number wraps
+    private final int mask;
+    private final byte[][] retained;
+    private final int[] retainedLength;
+    private int nextSeq;      // sequence number of the next frame sent
+    private int reserved;     // credits taken by acquire() not yet sent
+    private int ackSeq;       // every frame before this has been acked
+    private int limit;        // frames before this may be sent
+    private boolean closed;
+    private boolean woken;    // wakeSender() was called
+
+    // Receiver state, used by the reading thread only
+    private final int window;
+    private int expected;
+    private int unacked;
+    private boolean nackSent;
+    private final byte[] control = new byte[10];
+
+    /**
+     * @param window The most frames to have in flight, or 0 to only
+     *               receive sequenced frames, granting DEFAULT_WINDOW
+     */
+    FlowControl(int window) {
+        this.capacity = Math.max(window, 0);
+        int slots = capacity > 1 ? Integer.highestOneBit(capacity - 1) << 1 : capacity;
+        this.mask = slots - 1;
+        this.retained = new byte[slots][];
+        this.retainedLength = new int[slots];
+        this.limit = capacity;
+        this.window = window > 0 ? window : DEFAULT_WINDOW;
+    }
+
+    boolean isSending() {
+        return capacity > 0;
+    }
+
+    /**
+     * Take a credit, waiting until the receiver grants one or
+     * wakeSender() is called.
+     * @return false if woken without a credit
+     */
+    synchronized boolean acquire() throws IOException {
+        try {
+            while(!closed && !woken && nextSeq + reserved - limit >= 0) {
+                wait();
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for credit");
+        }
+        if(closed) throw new IOException("Connection closed");
+        if(nextSeq + reserved - limit >= 0) {
+            woken = false;
+            return false;
+        }
+        reserved += 1;
+        return true;
+    }
+
+    /**
+     * Wake a sender waiting in acquire(), so it can send something else
+     * meanwhile.
+     */
+    synchronized void wakeSender() {
+        woken = true;
+        notifyAll();
+    }
+
+    /**
+     * Give back a credit taken by acquire() without sending.
+     */
+    synchronized void release() {
+        reserved -= 1;
+        notifyAll();
+    }
+
+    /**
+     * The sequence number of the next frame. Only changes in sent(), so
+     * callers serialize encode and send.
+     */
+    synchronized int getNextSeq() {
+        return nextSeq;
+    }
+
+    /**
+     * Keep a copy of the frame encoded with getNextSeq() for resending,
+     * and use up the credit taken for it.
+     */
+    synchronized void sent(byte[] frame, int length) {
+        int slot = slot(nextSeq);
+        if(retained[slot] == null || retained[slot].length < length) {
+            retained[slot] = new byte[Math.max(length, 64)];
+        }
+        System.arraycopy(frame, 0, retained[slot], 0, length);
+        retainedLength[slot] = length;
+        nextSeq += 1;
+        reserved -= 1;
+    }
+
+    /**
+     * Handle a control frame from the peer.
+     * @return The sequence number to resend from after a NACK, which is
+     *         getNextSeq() when there is nothing to resend
+     */
+    synchronized int receivedControl(Frame frame) throws IOException {
+        int end = frame.offset + frame.length;
+        int seq = FrameCodec.readVarint(frame.buffer, frame.offset, end);
+        int credits = FrameCodec.readVarint(frame.buffer, frame.offset + FrameCodec.varintSize(seq), end);
+        if(seq - ackSeq >= 0 && nextSeq - seq >= 0) {
+            ackSeq = seq;
+            limit = ackSeq + Math.min(Math.max(credits, 0), capacity);
+            notifyAll();
+        }
+        return frame.cmd == BluetoothClient.LINE_NACK ? ackSeq : nextSeq;
+    }
+
+    /* Retained frames, valid from the last acked frame to getNextSeq() */
+    synchronized byte[] getRetained(int seq) {
+        return retained[slot(seq)];
+    }
+
+    synchronized int getRetainedLength(int seq) {
+        return retainedLength[slot(seq)];
+    }
+
+    private int slot(int seq) {
+        return seq & mask;
+    }
+
+    /**
+     * Fail senders waiting for credit.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Check the sequence number of a received frame.
+     * @return DELIVER, DROP, or NACK to drop it and ask for a resend
+     */
+    int received(int seq) {
+        if(seq == expected) {
+            expected += 1;
+            unacked += 1;
+            nackSent = false;
+            return DELIVER;
+        }
+        if(seq - expected > 0 && !nackSent) {
+            nackSent = true;
+            return NACK;
+        }
+        return DROP;
+    }
+
+    /**
+     * @param idle Whether there is no more data waiting to be read
+     * @return Whether to send an ack for the frames delivered so far
+     */
+    boolean shouldAck(boolean idle) {
+        return unacked >= (window + 1) / 2 || (idle && unacked > 0);
+    }
+
+    /**
+     * Build the payload of an ack or NACK into getControlBuffer(). Either
+     * acks every frame delivered so far.
+     * @return The length of the payload
+     */
+    int encodeControl() {
+        unacked = 0;
+        int pos = FrameCodec.putVarint(control, 0, expected);
+        return FrameCodec.putVarint(control, pos, window);
+    }
+
+    byte[] getControlBuffer() {
+        return control;
+    }
+}
@@ -0,0 +1,62 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Joins messages sent in fragments, one per channel, since fragments of
+ * messages on different channels arrive interleaved. Used by the reading
+ * thread only.
+ */
+class FragmentAssembler {
+    private static class Partial {
+        byte[] buffer = new byte[256];
+        int length;
+        int cmd;
+        boolean active;
+    }
+
+    private final HashMap<Integer, Partial> partials = new HashMap<Integer, Partial>();
+
+    /**
+     * Add a frame.
+     * @return false if it is a fragment of a message that isn't complete
+     *         yet. Otherwise true, and if it completed a message the frame
+     *         now holds the whole payload, valid until the next message on
+     *         the channel is complete.
+     */
+    boolean add(Frame frame) throws IOException {
+        boolean more = (frame.flags & FrameCodec.FLAG_MORE) != 0;
+        Partial partial = partials.get(frame.channel);
+        if(!more && (partial == null || !partial.active)) return true;
+        if(partial == null) {
+            partial = new Partial();
+            partials.put(frame.channel, partial);
+        }
+        if(!partial.active) {
+            partial.active = true;
+            partial.length = 0;
+            partial.cmd = frame.cmd;
+        }
+        int length = partial.length + frame.length;
+        if(length > FrameCodec.MAX_FRAME_LENGTH) {
+            throw new IOException("Fragmented message too long on channel "+frame.channel);
+        }
+        if(partial.buffer.length < length) {
+            byte[] grown = new byte[Math.max(length, partial.buffer.length * 2)];
+            System.arraycopy(partial.buffer, 0, grown, 0, partial.length);
+            partial.buffer = grown;
+        }
+        System.arraycopy(frame.buffer, frame.offset, partial.buffer, partial.length, frame.length);
+        partial.length = length;
+        if(more) return false;
+
+        partial.active = false;
+        frame.flags &= ~FrameCodec.FLAG_MORE;
+        frame.cmd = partial.cmd;
+        frame.buffer = partial.buffer;
+        frame.offset = 0;
+        frame.length = length;
+        return true;
+    }
+}
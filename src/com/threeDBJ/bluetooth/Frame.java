@@ -0,0 +1,34 @@
+package com.threeDBJ.bluetooth;
+
+/**
+ * A decoded frame, as passed to FrameReceiver. Frames and their buffers
+ * are reused by the decoder, so the fields are only valid until the
+ * callback returns. Use copyPayload() or toMessage() to keep the data.
+ */
+public class Frame {
+    /* Address of the device the frame came from */
+    public String address;
+    public int version, flags, cmd;
+    /* Sequence number, when flags has FrameCodec.FLAG_SEQUENCED */
+    public int seq;
+    /* Logical channel, 0 unless flags has FrameCodec.FLAG_CHANNEL */
+    public int channel;
+    /* Correlation id, when flags has FrameCodec.FLAG_REQUEST or FLAG_REPLY.
+       Pass a request to BluetoothService.reply() to answer it. */
+    public int correlation;
+    /* The payload is buffer[offset] to buffer[offset + length - 1] */
+    public byte[] buffer;
+    public int offset, length;
+
+    public byte[] copyPayload() {
+        byte[] copy = new byte[length];
+        System.arraycopy(buffer, offset, copy, 0, length);
+        return copy;
+    }
+
+    public BluetoothMessage toMessage() {
+        BluetoothMessage msg = new BluetoothMessage(cmd, copyPayload());
+        msg.channel = channel;
+        return msg;
+    }
+}
@@ -0,0 +1,147 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * Constants and helpers for the BluetoothMessage wire format.
+ *
+ * Legacy frames (version 0) are a signed length byte that counts itself
+ * and the command, the command byte and the payload, so payloads are
+ * limited to MAX_LEGACY_PAYLOAD bytes:
+ *
+ *   | len | cmd | payload |
+ *
+ * Version 1 frames start with a marker byte with the high bit set, which a
+ * legacy length byte never has, followed by a flags byte and the length of
+ * the rest of the frame as an unsigned LEB128 varint:
+ *
+ *   | 0x80|version | flags | varint len | cmd | payload |
+ *
+ * A frame with FLAG_SEQUENCED carries a varint sequence number before cmd,
+ * counted in len, and a frame with FLAG_CHANNEL a varint channel number
+ * after any sequence number. A frame with FLAG_REQUEST or FLAG_REPLY then
+ * carries a varint correlation id, which a reply copies from its request.
+ * FLAG_MORE marks a fragment of a message that continues in the next
+ * frame on the same channel. FLAG_CONTROL marks frames for the connection
+ * layer, such as the LINE_ACK and LINE_NACK frames of flow control, which
+ * are not passed to the client. FLAG_COMPRESSED marks a payload
+ * compressed by the connection's CompressionStage.
+ *
+ * @see FrameEncoder
+ * @see FrameDecoder
+ */
+public final class FrameCodec {
+    public static final int VERSION_LEGACY = 0;
+    public static final int VERSION_1 = 1;
+
+    /* Largest payload a legacy length byte can describe */
+    public static final int MAX_LEGACY_PAYLOAD = 125;
+    /* Largest value of the length field of a version 1 frame */
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    /* Largest header of a version 1 frame, up to and including cmd */
+    public static final int MAX_HEADER_SIZE = 1 + 1 + 4 + 5 + 5 + 5 + 1;
+
+    /* A varint sequence number precedes cmd */
+    public static final int FLAG_SEQUENCED = 0x01;
+    /* The frame is for the connection layer, not the client */
+    public static final int FLAG_CONTROL = 0x02;
+    /* The payload is compressed */
+    public static final int FLAG_COMPRESSED = 0x04;
+    /* A varint channel number precedes cmd */
+    public static final int FLAG_CHANNEL = 0x08;
+    /* The message continues in the next frame on the channel */
+    public static final int FLAG_MORE = 0x10;
+    /* The sender expects a reply, a correlation id precedes cmd */
+    public static final int FLAG_REQUEST = 0x20;
+    /* A reply to the request with the correlation id preceding cmd */
+    public static final int FLAG_REPLY = 0x40;
+
+    static final int MARKER = 0x80;
+    /* Flags understood by this version of the codec */
+    static final int KNOWN_FLAGS = FLAG_SEQUENCED | FLAG_CONTROL | FLAG_COMPRESSED | FLAG_CHANNEL | FLAG_MORE
+        | FLAG_REQUEST | FLAG_REPLY;
+    static final int CORRELATION_FLAGS = FLAG_REQUEST | FLAG_REPLY;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * @return The number of bytes value takes as a varint
+     */
+    public static int varintSize(int value) {
+        int size = 1;
+        while((value >>>= 7) != 0) size += 1;
+        return size;
+    }
+
+    /**
+     * Write value as an unsigned varint.
+     * @return The offset after the last byte written
+     */
+    public static int putVarint(byte[] buffer, int offset, int value) {
+        while((value & ~0x7F) != 0) {
+            buffer[offset++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte)value;
+        return offset;
+    }
+
+    /**
+     * Read an unsigned varint from buffer[offset] to buffer[end - 1]. The
+     * number of bytes read is varintSize() of the value.
+     */
+    public static int readVarint(byte[] buffer, int offset, int end) throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            if(offset >= end) throw new IOException("Truncated varint");
+            int b = buffer[offset++];
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /**
+     * @return The number of bytes value takes as a varint
+     */
+    public static int varlongSize(long value) {
+        int size = 1;
+        while((value >>>= 7) != 0) size += 1;
+        return size;
+    }
+
+    /**
+     * Write value as an unsigned varint.
+     * @return The offset after the last byte written
+     */
+    public static int putVarlong(byte[] buffer, int offset, long value) {
+        while((value & ~0x7FL) != 0) {
+            buffer[offset++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte)value;
+        return offset;
+    }
+
+    /**
+     * Read an unsigned varint written by putVarlong(). The number of bytes
+     * read is varlongSize() of the value.
+     */
+    public static long readVarlong(byte[] buffer, int offset, int end) throws IOException {
+        long value = 0;
+        for(int shift = 0; shift < 70; shift += 7) {
+            if(offset >= end) throw new IOException("Truncated varint");
+            int b = buffer[offset++];
+            value |= (long)(b & 0x7F) << shift;
+            if((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Varint too long");
+    }
+
+    static void checkVersion(int version) throws IOException {
+        if(version != VERSION_LEGACY && version != VERSION_1) {
+            throw new IOException("Unsupported frame version "+version);
+        }
+    }
+}
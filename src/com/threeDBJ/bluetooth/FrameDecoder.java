@@ -0,0 +1,147 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * Incremental decoder for legacy and version 1 frames. Data can be fed in
+ * pieces of any size, eg. straight from BulkReceiver, and a frame is
+ * delivered as soon as its last byte arrives. A frame that arrives whole
+ * within one piece is delivered straight from the caller's buffer; only
+ * frames split across reads are copied into the decoder's own buffer.
+ *
+ * After an IOException the stream is out of sync and the decoder should be
+ * reset() or discarded.
+ *
+ * @see FrameCodec
+ */
+public class FrameDecoder {
+    private static final int STATE_MARKER = 0;
+    private static final int STATE_FLAGS = 1;
+    private static final int STATE_LENGTH = 2;
+    private static final int STATE_BODY = 3;
+
+    private final Frame frame = new Frame();
+    private int state = STATE_MARKER;
+    private int version, flags;
+    private int bodyLength, lengthShift;
+    private byte[] body = new byte[256];
+    private int bodyPos;
+
+    /**
+     * The frame object passed to the receiver. Set its address to tag
+     * frames with the device they came from.
+     */
+    public Frame getFrame() {
+        return frame;
+    }
+
+    public void reset() {
+        state = STATE_MARKER;
+    }
+
+    /**
+     * Decode len bytes from buffer, calling receiver for each frame
+     * completed.
+     */
+    public void feed(byte[] buffer, int offset, int len, FrameReceiver receiver) throws IOException {
+        int end = offset + len;
+        while(offset < end) {
+            int b;
+            switch(state) {
+            case STATE_MARKER:
+                b = buffer[offset++] & 0xFF;
+                if((b & FrameCodec.MARKER) == 0) {
+                    // Legacy length byte, which counts itself and cmd
+                    if(b < 2) throw new IOException("Invalid legacy frame length "+b);
+                    version = FrameCodec.VERSION_LEGACY;
+                    flags = 0;
+                    startBody(b - 1);
+                } else {
+                    version = b & ~FrameCodec.MARKER;
+                    if(version != FrameCodec.VERSION_1) {
+                        throw new IOException("Unsupported frame version "+version);
+                    }
+                    state = STATE_FLAGS;
+                }
+                break;
+            case STATE_FLAGS:
+                flags = buffer[offset++] & 0xFF;
+                if((flags & ~FrameCodec.KNOWN_FLAGS) != 0) {
+                    throw new IOException("Unknown frame flags "+Integer.toHexString(flags));
+                }
+                bodyLength = 0;
+                lengthShift = 0;
+                state = STATE_LENGTH;
+                break;
+            case STATE_LENGTH:
+                b = buffer[offset++];
+                bodyLength |= (b & 0x7F) << lengthShift;
+                lengthShift += 7;
+                if((b & 0x80) == 0) {
+                    if(bodyLength < 1 || bodyLength > FrameCodec.MAX_FRAME_LENGTH) {
+                        throw new IOException("Invalid frame length "+bodyLength);
+                    }
+                    startBody(bodyLength);
+                } else if(lengthShift >= 28) {
+                    throw new IOException("Frame length varint too long");
+                }
+                break;
+            case STATE_BODY:
+                if(bodyPos == 0 && end - offset >= bodyLength) {
+                    // Whole body is in the caller's buffer, skip the copy
+                    deliver(buffer, offset, receiver);
+                    offset += bodyLength;
+                    break;
+                }
+                int n = Math.min(end - offset, bodyLength - bodyPos);
+                System.arraycopy(buffer, offset, body, bodyPos, n);
+                offset += n;
+                bodyPos += n;
+                if(bodyPos == bodyLength) {
+                    deliver(body, 0, receiver);
+                }
+                break;
+            }
+        }
+    }
+
+    private void startBody(int length) {
+        bodyLength = length;
+        bodyPos = 0;
+        if(body.length < length) {
+            body = new byte[Math.max(length, body.length * 2)];
+        }
+        state = STATE_BODY;
+    }
+
+    private void deliver(byte[] buffer, int offset, FrameReceiver receiver) throws IOException {
+        state = STATE_MARKER;
+        frame.version = version;
+        frame.flags = flags;
+        int end = offset + bodyLength;
+        if((flags & FrameCodec.FLAG_SEQUENCED) != 0) {
+            frame.seq = FrameCodec.readVarint(buffer, offset, end);
+            offset += FrameCodec.varintSize(frame.seq);
+        } else {
+            frame.seq = 0;
+        }
+        if((flags & FrameCodec.FLAG_CHANNEL) != 0) {
+            frame.channel = FrameCodec.readVarint(buffer, offset, end);
+            offset += FrameCodec.varintSize(frame.channel);
+        } else {
+            frame.channel = 0;
+        }
+        if((flags & FrameCodec.CORRELATION_FLAGS) != 0) {
+            frame.correlation = FrameCodec.readVarint(buffer, offset, end);
+            offset += FrameCodec.varintSize(frame.correlation);
+        } else {
+            frame.correlation = 0;
+        }
+        if(offset >= end) throw new IOException("Frame without cmd");
+        frame.cmd = buffer[offset] & 0xFF;
+        frame.buffer = buffer;
+        frame.offset = offset + 1;
+        frame.length = end - offset - 1;
+        receiver.receivedFrame(frame);
+    }
+}
@@ -0,0 +1,155 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes BluetoothMessages into frames. Header and payload are encoded
+ * into a buffer that is reused for every message, so encoding doesn't
+ * allocate once the buffer has grown to fit the messages being sent.
+ * Payloads too large to copy into the buffer are written straight from
+ * the message after the header.
+ *
+ * An encoder is not thread safe.
+ *
+ * @see FrameCodec
+ */
+public class FrameEncoder {
+    /* Largest frame that is copied into the buffer before writing */
+    private static final int MAX_BUFFER_SIZE = BluetoothClient.CHUNK_SIZE;
+
+    private int version;
+    private byte[] buffer = new byte[256];
+
+    public FrameEncoder() {
+        this(FrameCodec.VERSION_1);
+    }
+
+    public FrameEncoder(int version) {
+        this.version = version;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    /**
+     * The buffer holding the last frame encoded by encode().
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Encode a complete frame into the buffer.
+     *
+     * @return The length of the frame, starting at getBuffer()[0]
+     */
+    public int encode(int flags, int cmd, byte[] payload, int offset, int length) throws IOException {
+        return encode(flags, 0, cmd, payload, offset, length);
+    }
+
+    /**
+     * Encode a complete frame into the buffer, with a sequence number if
+     * flags has FrameCodec.FLAG_SEQUENCED.
+     *
+     * @return The length of the frame, starting at getBuffer()[0]
+     */
+    public int encode(int flags, int seq, int cmd, byte[] payload, int offset, int length) throws IOException {
+        return encode(flags, seq, 0, cmd, payload, offset, length);
+    }
+
+    /**
+     * Encode a complete frame into the buffer, with a sequence number if
+     * flags has FrameCodec.FLAG_SEQUENCED and a channel number if it has
+     * FrameCodec.FLAG_CHANNEL.
+     *
+     * @return The length of the frame, starting at getBuffer()[0]
+     */
+    public int encode(int flags, int seq, int channel, int cmd, byte[] payload, int offset, int length)
+        throws IOException {
+        return encode(flags, seq, channel, 0, cmd, payload, offset, length);
+    }
+
+    /**
+     * Encode a complete frame into the buffer, with any of the sequence
+     * number, channel number and correlation id its flags call for.
+     *
+     * @return The length of the frame, starting at getBuffer()[0]
+     */
+    public int encode(int flags, int seq, int channel, int correlation, int cmd,
+                      byte[] payload, int offset, int length) throws IOException {
+        int header = encodeHeader(flags, seq, channel, correlation, cmd, length);
+        ensureCapacity(header + length);
+        if(length > 0) System.arraycopy(payload, offset, buffer, header, length);
+        return header + length;
+    }
+
+    /**
+     * Encode a message and write it to out with as few writes as possible.
+     */
+    public void write(BluetoothMessage msg, OutputStream out) throws IOException {
+        int length = msg.bytes == null ? 0 : msg.bytes.length;
+        if(msg.hasArg()) {
+            DebugLog.e("BTAndroid", "BT MESSAGE ARG DEPRECATED");
+        }
+        if(FrameCodec.MAX_HEADER_SIZE + length <= MAX_BUFFER_SIZE) {
+            int frameLength = encode(0, msg.cmd, msg.bytes, 0, length);
+            out.write(buffer, 0, frameLength);
+        } else {
+            int headerLength = encodeHeader(0, msg.cmd, length);
+            out.write(buffer, 0, headerLength);
+            out.write(msg.bytes, 0, length);
+        }
+    }
+
+    /**
+     * Encode the header of a frame, up to and including cmd, into the
+     * start of the buffer.
+     * @return The length of the header
+     */
+    public int encodeHeader(int flags, int cmd, int payloadLength) throws IOException {
+        return encodeHeader(flags, 0, 0, 0, cmd, payloadLength);
+    }
+
+    private int encodeHeader(int flags, int seq, int channel, int correlation, int cmd, int payloadLength)
+        throws IOException {
+        FrameCodec.checkVersion(version);
+        if(version == FrameCodec.VERSION_LEGACY) {
+            if(payloadLength > FrameCodec.MAX_LEGACY_PAYLOAD) {
+                throw new IOException("Payload of "+payloadLength+" bytes is too long for a legacy frame");
+            }
+            if(flags != 0) throw new IOException("Legacy frames don't have flags");
+            buffer[0] = (byte)(payloadLength + 2);
+            buffer[1] = (byte)cmd;
+            return 2;
+        }
+        int seqSize = (flags & FrameCodec.FLAG_SEQUENCED) != 0 ? FrameCodec.varintSize(seq) : 0;
+        int channelSize = (flags & FrameCodec.FLAG_CHANNEL) != 0 ? FrameCodec.varintSize(channel) : 0;
+        int correlationSize = (flags & FrameCodec.CORRELATION_FLAGS) != 0 ? FrameCodec.varintSize(correlation) : 0;
+        int bodyLength = payloadLength + seqSize + channelSize + correlationSize + 1;
+        if(bodyLength > FrameCodec.MAX_FRAME_LENGTH) {
+            throw new IOException("Payload of "+payloadLength+" bytes is too long for a frame");
+        }
+        buffer[0] = (byte)(FrameCodec.MARKER | version);
+        buffer[1] = (byte)flags;
+        int pos = FrameCodec.putVarint(buffer, 2, bodyLength);
+        if(seqSize > 0) pos = FrameCodec.putVarint(buffer, pos, seq);
+        if(channelSize > 0) pos = FrameCodec.putVarint(buffer, pos, channel);
+        if(correlationSize > 0) pos = FrameCodec.putVarint(buffer, pos, correlation);
+        buffer[pos++] = (byte)cmd;
+        return pos;
+    }
+
+    private void ensureCapacity(int size) {
+        if(buffer.length < size) {
+            byte[] grown = new byte[Math.max(size, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, buffer.length);
+            buffer = grown;
+        }
+    }
+}
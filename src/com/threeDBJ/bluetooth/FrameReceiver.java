@@ -0,0 +1,19 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * Optional interface for a BluetoothClient that wants whole frames. If the
+ * service's client implements it, the connected thread decodes the
+ * incoming stream with a FrameDecoder and delivers one call per frame.
+ * Both legacy and version 1 frames are accepted.
+ */
+public interface FrameReceiver {
+
+    /**
+     * Called for every complete frame received.
+     * @param frame The frame. It is reused, so it is only valid until this
+     *              call returns.
+     */
+    public void receivedFrame(Frame frame) throws IOException;
+}
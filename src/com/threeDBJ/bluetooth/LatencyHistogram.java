@@ -0,0 +1,92 @@
+package com.threeDBJ.bluetooth;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with power of two buckets, cheap enough to
+ * record from the write path. Bucket b counts latencies whose value in
+ * microseconds has b significant bits, ie. from 2^(b-1) up to 2^b - 1us,
+ * and bucket 0 those under a microsecond. Percentiles are reported as the
+ * upper bound of their bucket, so they are accurate to a factor of two.
+ */
+public class LatencyHistogram {
+    public static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = Math.max(nanos / 1000, 0);
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        count.incrementAndGet();
+        sumMicros.addAndGet(micros);
+        long max;
+        while(micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros));
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMeanMicros() {
+        long n = count.get();
+        return n == 0 ? 0 : sumMicros.get() / n;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * @param percentile From 0 to 100
+     * @return The upper bound of the bucket holding the percentile, in
+     *         microseconds, or 0 if nothing was recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        long n = count.get();
+        if(n == 0) return 0;
+        long rank = (long)Math.ceil(n * percentile / 100.0);
+        long seen = 0;
+        for(int b = 0; b < BUCKETS; b++) {
+            seen += buckets.get(b);
+            if(seen >= rank && seen > 0) {
+                return Math.min((1L << b) - 1, maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    /**
+     * @return A copy of the bucket counts
+     */
+    public long[] getBuckets() {
+        long[] copy = new long[BUCKETS];
+        for(int b = 0; b < BUCKETS; b++) copy[b] = buckets.get(b);
+        return copy;
+    }
+
+    void add(LatencyHistogram other) {
+        for(int b = 0; b < BUCKETS; b++) buckets.addAndGet(b, other.buckets.get(b));
+        count.addAndGet(other.count.get());
+        sumMicros.addAndGet(other.sumMicros.get());
+        long max, otherMax = other.maxMicros.get();
+        while(otherMax > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, otherMax));
+    }
+
+    public void reset() {
+        for(int b = 0; b < BUCKETS; b++) buckets.set(b, 0);
+        count.set(0);
+        sumMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount() + " mean=" + getMeanMicros() + "us p50=" + getPercentileMicros(50)
+            + "us p99=" + getPercentileMicros(99) + "us max=" + getMaxMicros() + "us";
+    }
+}
@@ -0,0 +1,140 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The last messages logged through DebugLog, kept in memory. Any number of
+ * threads can log at once without locking: each claims the next slot with
+ * one atomic increment, overwriting the oldest message.
+ *
+ * Messages are kept unformatted and formatted by dump(), so arguments
+ * should not be changed after they are logged.
+ *
+ * @see DebugLog#setRingBuffer(LogRingBuffer)
+ */
+public class LogRingBuffer {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final char[] LEVELS = {'?', '?', 'V', 'D', 'I', 'W', 'E', 'A'};
+
+    private static final class Entry {
+        final long seq;
+        final long time;
+        final int level, count;
+        final String tag, format;
+        final Object arg1, arg2, arg3;
+        final Throwable tr;
+
+        Entry(long seq, int level, String tag, String format, int count,
+              Object arg1, Object arg2, Object arg3, Throwable tr) {
+            this.seq = seq;
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.tag = tag;
+            this.format = format;
+            this.count = count;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.arg3 = arg3;
+            this.tr = tr;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    /* Entries before this were cleared */
+    private volatile long start;
+
+    public LogRingBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity How many messages to keep, rounded up to a power of
+     *                 two
+     */
+    public LogRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        entries = new AtomicReferenceArray<Entry>(size);
+        mask = size - 1;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return How many messages have been logged, including those
+     *         overwritten since
+     */
+    public long getCount() {
+        return next.get();
+    }
+
+    void add(int level, String tag, String format, int count,
+             Object arg1, Object arg2, Object arg3, Throwable tr) {
+        long seq = next.getAndIncrement();
+        entries.lazySet((int)seq & mask, new Entry(seq, level, tag, format, count, arg1, arg2, arg3, tr));
+    }
+
+    /**
+     * Forget the messages logged so far.
+     */
+    public void clear() {
+        start = next.get();
+    }
+
+    /**
+     * Write the kept messages, oldest first, one per line in logcat's
+     * "time level/tag: message" form. Messages being logged while
+     * dumping may be left out.
+     * @return The number of messages written
+     */
+    public int dump(Appendable out) throws IOException {
+        long end = next.get();
+        long from = Math.max(start, end - getCapacity());
+        SimpleDateFormat time = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        int written = 0;
+        for(long seq = from; seq < end; seq++) {
+            Entry e = entries.get((int)seq & mask);
+            if(e == null || e.seq != seq) continue;
+            out.append(time.format(new Date(e.time))).append(' ')
+                .append(e.level < LEVELS.length ? LEVELS[e.level] : '?').append('/')
+                .append(e.tag).append(": ");
+            if(e.format != null) {
+                out.append(e.count == 0 ? e.format : DebugLog.format(e.format, e.count, e.arg1, e.arg2, e.arg3));
+            }
+            if(e.tr != null) {
+                StringWriter trace = new StringWriter();
+                e.tr.printStackTrace(new PrintWriter(trace));
+                if(e.format != null) out.append('\n');
+                out.append(trace.toString().trim());
+            }
+            out.append('\n');
+            written += 1;
+        }
+        return written;
+    }
+
+    /**
+     * @return The kept messages as dump() writes them
+     */
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        try {
+            dump(b);
+        } catch(IOException e) {
+            // StringBuilder doesn't throw
+        }
+        return b.toString();
+    }
+}
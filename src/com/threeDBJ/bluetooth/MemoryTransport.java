@@ -0,0 +1,281 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-process Transport. Every MemoryTransport created with join() shares
+ * one network, and a socket created by one endpoint connects to whichever
+ * endpoint is listening on the given address. Connections are a pair of
+ * bounded in-memory pipes, so the service can run and be load tested on a
+ * plain JVM.
+ */
+public class MemoryTransport implements Transport {
+    /* Bytes buffered in each direction of a connection */
+    public static final int PIPE_SIZE = 64 * 1024;
+
+    private final ConcurrentHashMap<String, MemoryServerSocket> servers;
+    private final String address;
+
+    /**
+     * Create the first endpoint of a new in-memory network.
+     * @param address The address of this endpoint
+     */
+    public MemoryTransport(String address) {
+        this(address, new ConcurrentHashMap<String, MemoryServerSocket>());
+    }
+
+    private MemoryTransport(String address, ConcurrentHashMap<String, MemoryServerSocket> servers) {
+        this.address = address;
+        this.servers = servers;
+    }
+
+    /**
+     * Create another endpoint on the same in-memory network.
+     * @param address The address of the new endpoint
+     */
+    public MemoryTransport join(String address) {
+        return new MemoryTransport(address, servers);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    private static String key(String address, boolean secure) {
+        return (secure ? "S/" : "I/") + address;
+    }
+
+    public TransportServerSocket listen(boolean secure) throws IOException {
+        MemoryServerSocket server = new MemoryServerSocket(key(address, secure));
+        if(servers.putIfAbsent(server.key, server) != null) {
+            throw new IOException("Address already in use: "+address);
+        }
+        return server;
+    }
+
+    public TransportSocket createSocket(String remote, boolean secure) throws IOException {
+        return new MemorySocket(remote, key(remote, secure));
+    }
+
+    public boolean hasPeer(String remote) {
+        return servers.containsKey(key(remote, true)) || servers.containsKey(key(remote, false));
+    }
+
+    private class MemoryServerSocket implements TransportServerSocket {
+        final String key;
+        final LinkedBlockingQueue<MemorySocket> pending = new LinkedBlockingQueue<MemorySocket>();
+        volatile boolean closed;
+
+        MemoryServerSocket(String key) {
+            this.key = key;
+        }
+
+        public TransportSocket accept() throws IOException {
+            MemorySocket socket;
+            try {
+                socket = pending.take();
+            } catch(InterruptedException e) {
+                throw new InterruptedIOException("accept() interrupted");
+            }
+            if(socket.server == this) {
+                // Closed marker, leave it for any other accepting thread
+                pending.offer(socket);
+                throw new IOException("Server socket closed");
+            }
+            return socket;
+        }
+
+        /* Hand a new connection to accept(). Returns false if closed. */
+        synchronized boolean offer(MemorySocket socket) {
+            if(closed) return false;
+            pending.offer(socket);
+            return true;
+        }
+
+        public synchronized void close() {
+            if(closed) return;
+            closed = true;
+            servers.remove(key, this);
+            MemorySocket marker = new MemorySocket(null, key);
+            marker.server = this;
+            pending.offer(marker);
+        }
+    }
+
+    private class MemorySocket implements TransportSocket {
+        final String remoteAddress;
+        final String key;
+        MemoryServerSocket server;
+        private Pipe in, out;
+        private volatile boolean closed;
+
+        MemorySocket(String remoteAddress, String key) {
+            this.remoteAddress = remoteAddress;
+            this.key = key;
+        }
+
+        MemorySocket(String remoteAddress, Pipe in, Pipe out) {
+            this(remoteAddress, null);
+            this.in = in;
+            this.out = out;
+        }
+
+        public void connect() throws IOException {
+            if(closed) throw new IOException("Socket closed");
+            MemoryServerSocket target = servers.get(key);
+            if(target == null) {
+                throw new IOException("Connection refused: "+remoteAddress);
+            }
+            Pipe toServer = new Pipe(PIPE_SIZE);
+            Pipe toClient = new Pipe(PIPE_SIZE);
+            synchronized(this) {
+                in = toClient;
+                out = toServer;
+            }
+            if(!target.offer(new MemorySocket(address, toServer, toClient))) {
+                close();
+                throw new IOException("Connection refused: "+remoteAddress);
+            }
+        }
+
+        public synchronized InputStream getInputStream() throws IOException {
+            if(in == null) throw new IOException("Socket not connected");
+            return in.input;
+        }
+
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if(out == null) throw new IOException("Socket not connected");
+            return out.output;
+        }
+
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        public String getRemoteName() {
+            return remoteAddress;
+        }
+
+        public synchronized void close() {
+            closed = true;
+            if(in != null) in.close();
+            if(out != null) out.close();
+        }
+    }
+
+    /**
+     * A bounded single direction byte pipe. Unlike java.io.PipedInputStream
+     * it doesn't care which threads read and write it.
+     */
+    static class Pipe {
+        private final byte[] buffer;
+        private int readPos, count;
+        private boolean closed;
+        final InputStream input = new PipeInputStream();
+        final OutputStream output = new PipeOutputStream();
+
+        Pipe(int size) {
+            buffer = new byte[size];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) return 0;
+            while(count == 0) {
+                if(closed) return -1;
+                await();
+            }
+            int n = Math.min(len, Math.min(count, buffer.length - readPos));
+            System.arraycopy(buffer, readPos, b, off, n);
+            readPos = (readPos + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0) {
+                while(count == buffer.length && !closed) {
+                    await();
+                }
+                if(closed) throw new IOException("Pipe closed");
+                int writePos = (readPos + count) % buffer.length;
+                int n = Math.min(len, Math.min(buffer.length - count, buffer.length - writePos));
+                System.arraycopy(b, off, buffer, writePos, n);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized int available() {
+            return count;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        private void await() throws IOException {
+            try {
+                wait();
+            } catch(InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        private class PipeInputStream extends InputStream {
+            private final byte[] single = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                synchronized(Pipe.this) {
+                    return Pipe.this.read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                return Pipe.this.available();
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        }
+
+        private class PipeOutputStream extends OutputStream {
+            private final byte[] single = new byte[1];
+
+            @Override
+            public void write(int b) throws IOException {
+                synchronized(Pipe.this) {
+                    single[0] = (byte)b;
+                    Pipe.this.write(single, 0, 1);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free multi-producer, single-consumer queue of pending writes for
+ * one connection. Any number of threads can offer() without blocking each
+ * other; only the connection's writer thread may take().
+ *
+ * This is an intrusive linked queue: producers swap themselves in as the
+ * tail with a single atomic exchange and then link the previous tail to
+ * the new entry. The consumer follows the links from a stub entry.
+ */
+class OutboundQueue {
+    static final int TYPE_MESSAGE = 0;
+    static final int TYPE_BYTE = 1;
+    static final int TYPE_BYTES = 2;
+    static final int TYPE_STREAM = 3;
+    static final int TYPE_FLUSH = 4;
+    /* A stream sent as a series of messages on a channel */
+    static final int TYPE_CHANNEL_STREAM = 5;
+    /* A control frame, sent ahead of everything else */
+    static final int TYPE_CONTROL = 6;
+    /* Resend the flow controlled frames from seq, after a NACK */
+    static final int TYPE_RESEND = 7;
+
+    static final class Entry {
+        int type;
+        BluetoothMessage msg;
+        int cmd;
+        byte[] bytes;
+        int length;
+        InputStream stream;
+        boolean urgent;
+        int channel;
+        /* FLAG_REQUEST or FLAG_REPLY and the correlation id of a message */
+        int correlationFlags, correlation;
+        /* The sequence number of a TYPE_RESEND */
+        int seq;
+        // Progress through the entry, for writes sent in several parts
+        int offset;
+        boolean done;
+        /* System.nanoTime() when offered, for the send latency */
+        long queuedAt;
+        volatile Entry next;
+
+        void clear() {
+            msg = null;
+            bytes = null;
+            stream = null;
+        }
+    }
+
+    private final AtomicReference<Entry> tail;
+    /* The last entry taken, or the stub. Only touched by the consumer */
+    private Entry head;
+    private volatile Thread consumer;
+    private volatile boolean parked;
+
+    OutboundQueue() {
+        head = new Entry();
+        tail = new AtomicReference<Entry>(head);
+    }
+
+    void offer(Entry entry) {
+        entry.next = null;
+        Entry prev = tail.getAndSet(entry);
+        prev.next = entry;
+        if(parked) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * @return The next entry, or null if the queue is empty. The consumer
+     *         may hold on to entries, and should clear() them when done.
+     */
+    Entry poll() {
+        Entry next = head.next;
+        if(next == null) return null;
+        head = next;
+        return next;
+    }
+
+    /**
+     * Wait for the next entry.
+     * @return The next entry, or null if interrupted or woken by wakeUp()
+     */
+    Entry take() {
+        Entry entry = poll();
+        if(entry != null) return entry;
+        consumer = Thread.currentThread();
+        parked = true;
+        try {
+            // Re-check after publishing parked, or an offer between the
+            // poll and park could be missed
+            entry = poll();
+            if(entry == null) {
+                LockSupport.park(this);
+                entry = poll();
+            }
+        } finally {
+            parked = false;
+        }
+        return entry;
+    }
+
+    boolean isEmpty() {
+        return head.next == null;
+    }
+
+    /**
+     * Wake the consumer if it is waiting in take().
+     */
+    void wakeUp() {
+        Thread t = consumer;
+        if(t != null) LockSupport.unpark(t);
+    }
+}
@@ -0,0 +1,64 @@
+package com.threeDBJ.bluetooth;
+
+import java.util.Random;
+
+/**
+ * How BluetoothService retries a lost connection. Each attempt waits
+ * initialDelayMs * multiplier^(attempt - 1), capped at maxDelayMs, and
+ * moved up or down by a random fraction of up to jitter, so devices that
+ * dropped together don't all retry at the same moment.
+ *
+ * @see BluetoothService#setReconnectPolicy(ReconnectPolicy)
+ */
+public class ReconnectPolicy {
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final double multiplier;
+    private final double jitter;
+    private final int maxAttempts;
+
+    /**
+     * @param initialDelayMs Delay before the first attempt
+     * @param maxDelayMs Longest delay between attempts
+     * @param multiplier Growth of the delay after each attempt, at least 1
+     * @param jitter Largest random change to a delay, as a fraction of it,
+     *               between 0 and 1
+     * @param maxAttempts Attempts before giving up
+     */
+    public ReconnectPolicy(long initialDelayMs, long maxDelayMs, double multiplier,
+                           double jitter, int maxAttempts) {
+        if(initialDelayMs < 0 || maxDelayMs < initialDelayMs || multiplier < 1
+           || jitter < 0 || jitter > 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("Invalid reconnect policy");
+        }
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Half a second doubling up to 30 seconds, with 20% jitter, for 10
+     * attempts.
+     */
+    public static ReconnectPolicy defaultPolicy() {
+        return new ReconnectPolicy(500, 30000, 2.0, 0.2, 10);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param attempt The attempt number, starting at 1
+     * @param random Source of the jitter
+     * @return How long to wait before the attempt
+     */
+    public long getDelay(int attempt, Random random) {
+        double delay = initialDelayMs * Math.pow(multiplier, attempt - 1);
+        delay = Math.min(delay, maxDelayMs);
+        delay *= 1 + jitter * (2 * random.nextDouble() - 1);
+        return Math.max(0, Math.min(Math.round(delay), maxDelayMs));
+    }
+}
@@ -0,0 +1,149 @@
+package com.threeDBJ.bluetooth;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The requests of one connection that are waiting for a reply, by
+ * correlation id. Any number can be in flight at once.
+ */
+class ReplyTracker {
+    private final HashMap<Integer, ReplyFuture> pending = new HashMap<Integer, ReplyFuture>();
+    private int nextId = 1;
+
+    /**
+     * A reply that will arrive later. get() throws an ExecutionException
+     * wrapping a TimeoutException if no reply came in time, or an
+     * IOException if the request couldn't be sent or the connection was
+     * lost.
+     */
+    class ReplyFuture implements Future<BluetoothMessage> {
+        final int id;
+        private BluetoothMessage reply;
+        private Throwable failure;
+        private boolean done, cancelled;
+        private ScheduledFuture<?> timeout;
+
+        ReplyFuture(int id) {
+            this.id = id;
+        }
+
+        synchronized void setTimeout(ScheduledFuture<?> timeout) {
+            if(done) {
+                timeout.cancel(false);
+            } else {
+                this.timeout = timeout;
+            }
+        }
+
+        void complete(BluetoothMessage reply, Throwable failure) {
+            ScheduledFuture<?> t;
+            synchronized(this) {
+                if(done) return;
+                this.reply = reply;
+                this.failure = failure;
+                done = true;
+                t = timeout;
+                notifyAll();
+            }
+            if(t != null) t.cancel(false);
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized(this) {
+                if(done) return false;
+                cancelled = true;
+            }
+            remove(id);
+            complete(null, null);
+            return true;
+        }
+
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        public synchronized BluetoothMessage get() throws InterruptedException, ExecutionException {
+            while(!done) {
+                wait();
+            }
+            return result();
+        }
+
+        public synchronized BluetoothMessage get(long time, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(time);
+            while(!done) {
+                long wait = deadline - System.nanoTime();
+                if(wait <= 0) throw new TimeoutException();
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            }
+            return result();
+        }
+
+        private BluetoothMessage result() throws ExecutionException {
+            if(cancelled) throw new CancellationException();
+            if(failure != null) throw new ExecutionException(failure);
+            return reply;
+        }
+    }
+
+    /**
+     * Register a new request.
+     */
+    synchronized ReplyFuture add() {
+        int id = nextId;
+        nextId = nextId == Integer.MAX_VALUE ? 1 : nextId + 1;
+        ReplyFuture future = new ReplyFuture(id);
+        pending.put(id, future);
+        return future;
+    }
+
+    synchronized ReplyFuture remove(int id) {
+        return pending.remove(id);
+    }
+
+    /**
+     * Complete the request a reply answers.
+     * @return false if no request was waiting for it, eg. after a timeout
+     */
+    boolean replied(int id, BluetoothMessage reply) {
+        ReplyFuture future = remove(id);
+        if(future == null) return false;
+        future.complete(reply, null);
+        return true;
+    }
+
+    /**
+     * Fail one request, if it is still waiting.
+     */
+    void fail(int id, Throwable failure) {
+        ReplyFuture future = remove(id);
+        if(future != null) future.complete(null, failure);
+    }
+
+    /**
+     * Fail every waiting request.
+     */
+    void failAll(Throwable failure) {
+        List<ReplyFuture> failed;
+        synchronized(this) {
+            failed = new ArrayList<ReplyFuture>(pending.values());
+            pending.clear();
+        }
+        for(ReplyFuture future : failed) {
+            future.complete(null, failure);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * Transport backed by RFCOMM sockets on a BluetoothAdapter. This is the
+ * transport BluetoothService uses unless it is given another one.
+ */
+public class RfcommTransport implements Transport {
+    private static final String TAG = "BTAndroid";
+
+    // Name for the SDP record when creating server socket
+    private static final String NAME_SECURE = "BluetoothSecure";
+    private static final String NAME_INSECURE = "BluetoothInsecure";
+
+    // Unique UUID for this application
+    //private static final UUID UUID_SECURE = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+    private static final UUID UUID_SECURE = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    //private static final UUID UUID_INSECURE = UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+    private static final UUID UUID_INSECURE = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothAdapter btAdapter;
+    private final BondedDeviceCache bondedDevices;
+
+    public RfcommTransport() {
+        this(BluetoothAdapter.getDefaultAdapter(), BondedDeviceCache.getInstance());
+    }
+
+    public RfcommTransport(BluetoothAdapter btAdapter) {
+        this(btAdapter, new BondedDeviceCache(btAdapter));
+    }
+
+    /**
+     * @param btAdapter The adapter to listen and connect on
+     * @param bondedDevices Index of the adapter's bonded devices
+     */
+    public RfcommTransport(BluetoothAdapter btAdapter, BondedDeviceCache bondedDevices) {
+        this.btAdapter = btAdapter;
+        this.bondedDevices = bondedDevices;
+    }
+
+    /**
+     * The bonded device index used by hasPeer() and createSocket().
+     * Register it, or start the service with start(Context), so lookups
+     * don't ask the adapter for the bonded devices.
+     * @see BondedDeviceCache#register(android.content.Context)
+     */
+    public BondedDeviceCache getBondedDeviceCache() {
+        return bondedDevices;
+    }
+
+    public TransportServerSocket listen(boolean secure) throws IOException {
+        BluetoothServerSocket server;
+        if (secure) {
+            server = btAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, UUID_SECURE);
+        } else {
+            server = btAdapter.listenUsingInsecureRfcommWithServiceRecord(NAME_INSECURE, UUID_INSECURE);
+        }
+        return new RfcommServerSocket(server);
+    }
+
+    public TransportSocket createSocket(String address, boolean secure) throws IOException {
+        BluetoothDevice device = getDevice(address);
+        BluetoothSocket socket;
+        if (secure) {
+            socket = device.createRfcommSocketToServiceRecord(UUID_SECURE);
+            DebugLog.d(TAG, "Created secure socket to {}", UUID_SECURE);
+        } else {
+            socket = device.createInsecureRfcommSocketToServiceRecord(UUID_INSECURE);
+            DebugLog.d(TAG, "Created insecure socket to {}", UUID_INSECURE);
+        }
+        return new RfcommSocket(socket);
+    }
+
+    /**
+     * Create a socket to a fixed RFCOMM channel, skipping the SDP lookup.
+     * This uses the hidden BluetoothDevice.createRfcommSocket(int), which
+     * some devices need when their service record can't be found.
+     * @param channel The RFCOMM channel, 1 to 30
+     */
+    public TransportSocket createChannelSocket(String address, int channel) throws IOException {
+        BluetoothDevice device = getDevice(address);
+        BluetoothSocket socket;
+        try {
+            Method m = device.getClass().getMethod("createRfcommSocket", int.class);
+            socket = (BluetoothSocket) m.invoke(device, channel);
+        } catch(InvocationTargetException e) {
+            throw new IOException("Channel "+channel+" socket failed - "+e.getCause());
+        } catch(Exception e) {
+            throw new IOException("Channel sockets unsupported - "+e);
+        }
+        DebugLog.d(TAG, "Created socket to channel {}", channel);
+        return new RfcommSocket(socket);
+    }
+
+    private BluetoothDevice getDevice(String address) throws IOException {
+        BluetoothDevice device = bondedDevices.get(address);
+        if(device == null) {
+            try {
+                device = btAdapter.getRemoteDevice(address);
+            } catch(IllegalArgumentException e) {
+                throw new IOException("Invalid Bluetooth address "+address);
+            }
+        }
+        return device;
+    }
+
+    public boolean hasPeer(String address) {
+        return bondedDevices.get(address) != null;
+    }
+
+    private class RfcommSocket implements TransportSocket {
+        private final BluetoothSocket socket;
+
+        RfcommSocket(BluetoothSocket socket) {
+            this.socket = socket;
+        }
+
+        public void connect() throws IOException {
+            // Always cancel discovery because it will slow down a connection
+            btAdapter.cancelDiscovery();
+            socket.connect();
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        public String getRemoteAddress() {
+            return socket.getRemoteDevice().getAddress();
+        }
+
+        public String getRemoteName() {
+            return socket.getRemoteDevice().getName();
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private class RfcommServerSocket implements TransportServerSocket {
+        private final BluetoothServerSocket server;
+
+        RfcommServerSocket(BluetoothServerSocket server) {
+            this.server = server;
+        }
+
+        public TransportSocket accept() throws IOException {
+            return new RfcommSocket(server.accept());
+        }
+
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+}
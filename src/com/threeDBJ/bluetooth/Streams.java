@@ -0,0 +1,52 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stream loops used on the write path. Kept free of Android classes so
+ * they can be benchmarked on a plain JVM.
+ */
+public final class Streams {
+
+    private Streams() {
+    }
+
+    /**
+     * Write len bytes of buffer in writes of at most chunkSize bytes.
+     */
+    public static void writeChunked(OutputStream out, byte[] buffer, int len, int chunkSize) throws IOException {
+        int i=0, amount;
+        while(i < len) {
+            amount = (len - i < chunkSize) ? len-i : chunkSize;
+            out.write(buffer, i, amount);
+            i += amount;
+        }
+    }
+
+    /**
+     * Copy a stream to the end through buffer.
+     * @return The number of bytes copied
+     */
+    public static int copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        int total = 0;
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+            total += len;
+        }
+        return total;
+    }
+
+    public static String readLine(DataInputStream stream) throws IOException {
+        StringBuilder str = new StringBuilder();
+        while(true) {
+            char c = (char)stream.read();
+            if(c == '\n') break;
+            str.append(c);
+        }
+        return str.toString();
+    }
+}
@@ -0,0 +1,120 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Transport over localhost TCP, for running the service on a plain JVM
+ * with real socket behaviour. A transport listens on its port for secure
+ * connections and on port + 1 for insecure connections. Remote addresses
+ * are "host:port" strings naming the remote transport's port.
+ */
+public class TcpTransport implements Transport {
+    private final String host;
+    private final int port;
+
+    /**
+     * @param port The port to listen on for secure connections
+     */
+    public TcpTransport(int port) {
+        this("127.0.0.1", port);
+    }
+
+    public TcpTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * @return The address other transports use to connect to this one
+     */
+    public String getAddress() {
+        return host + ":" + port;
+    }
+
+    public TransportServerSocket listen(boolean secure) throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(host, secure ? port : port + 1));
+        return new TcpServerSocket(server);
+    }
+
+    public TransportSocket createSocket(String address, boolean secure) throws IOException {
+        int split = address.lastIndexOf(':');
+        if(split == -1) throw new IOException("Invalid TCP address "+address);
+        int remotePort;
+        try {
+            remotePort = Integer.parseInt(address.substring(split + 1));
+        } catch(NumberFormatException e) {
+            throw new IOException("Invalid TCP address "+address);
+        }
+        if(!secure) remotePort += 1;
+        return new TcpSocket(new Socket(), new InetSocketAddress(address.substring(0, split), remotePort), address);
+    }
+
+    public boolean hasPeer(String address) {
+        return address.lastIndexOf(':') != -1;
+    }
+
+    private static class TcpSocket implements TransportSocket {
+        private final Socket socket;
+        private final InetSocketAddress remote;
+        private final String remoteAddress;
+
+        TcpSocket(Socket socket, InetSocketAddress remote, String remoteAddress) {
+            this.socket = socket;
+            this.remote = remote;
+            this.remoteAddress = remoteAddress;
+        }
+
+        public void connect() throws IOException {
+            socket.connect(remote);
+            // RFCOMM doesn't delay small writes, so TCP shouldn't either
+            socket.setTcpNoDelay(true);
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        public String getRemoteName() {
+            return remoteAddress;
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static class TcpServerSocket implements TransportServerSocket {
+        private final ServerSocket server;
+
+        TcpServerSocket(ServerSocket server) {
+            this.server = server;
+        }
+
+        public TransportSocket accept() throws IOException {
+            Socket socket = server.accept();
+            socket.setTcpNoDelay(true);
+            InetSocketAddress remote = (InetSocketAddress)socket.getRemoteSocketAddress();
+            String address = remote.getAddress().getHostAddress() + ":" + remote.getPort();
+            return new TcpSocket(socket, remote, address);
+        }
+
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+}
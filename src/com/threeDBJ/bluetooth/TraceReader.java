@@ -0,0 +1,186 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Reads the records of a wire trace written by WireTraceRecorder, segment
+ * after segment:
+ *
+ *     TraceReader reader = new TraceReader(dir);
+ *     try {
+ *         TraceReader.Record r;
+ *         while((r = reader.next()) != null) {
+ *             if(r.type == WireTraceRecorder.TYPE_DATA_IN) ...
+ *         }
+ *     } finally {
+ *         reader.close();
+ *     }
+ *
+ * Each connection is opened once, though segments open the connections
+ * still open again. Connections left open when the recorder was stopped
+ * without closing them are closed where the next recording starts. A
+ * segment cut short, eg. by the process being killed while it was written,
+ * ends at the last whole record.
+ */
+public class TraceReader implements Closeable {
+
+    /**
+     * A record of the trace. The record and its buffer are reused, so the
+     * fields are only valid until the next call to next().
+     */
+    public static class Record {
+        /* One of the WireTraceRecorder.TYPE_ constants */
+        public int type;
+        /* Id of the connection, unique among those open at once */
+        public int connection;
+        /* Address of the connection's remote device */
+        public String address;
+        /* When the record was written, in microseconds since the epoch */
+        public long timeMicros;
+        /* For data, the length of the read or write. The first captured
+           bytes of it are buffer[0] to buffer[captured - 1]. */
+        public int length, captured;
+        public byte[] buffer = new byte[256];
+    }
+
+    private final File[] segments;
+    private int nextSegment;
+    private DataInputStream in;
+    private final Record record = new Record();
+    private final HashMap<Integer, String> addresses = new HashMap<Integer, String>();
+    /* Whether the records so far open the connections of the last segment again */
+    private boolean reopening;
+    /* Connections of an earlier recording still to be closed */
+    private final ArrayList<Integer> stale = new ArrayList<Integer>();
+
+    /**
+     * @param file A trace directory, to read all its segments oldest
+     *             first, or a single segment file
+     */
+    public TraceReader(File file) {
+        segments = file.isDirectory() ? WireTraceRecorder.listSegments(file) : new File[] {file};
+    }
+
+    /**
+     * @return The next record, or null after the last one
+     */
+    public Record next() throws IOException {
+        while(true) {
+            if(in == null && !openSegment()) return null;
+            try {
+                if(readRecord()) return record;
+            } catch(EOFException e) {
+                // Cut short
+            }
+            in.close();
+            in = null;
+        }
+    }
+
+    private boolean openSegment() throws IOException {
+        if(nextSegment == segments.length) return false;
+        File file = segments[nextSegment++];
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if(in.readInt() != WireTraceRecorder.MAGIC) {
+                throw new IOException(file+" is not a wire trace");
+            }
+            int version = in.readUnsignedByte();
+            if(version != WireTraceRecorder.VERSION) {
+                throw new IOException("Unsupported wire trace version "+version+" in "+file);
+            }
+            int flags = in.readUnsignedByte();
+            in.readShort();
+            record.timeMicros = in.readLong() * 1000;
+            reopening = (flags & WireTraceRecorder.FLAG_CONTINUED) != 0;
+            if(!reopening) stale.addAll(addresses.keySet());
+        } catch(IOException e) {
+            in.close();
+            in = null;
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * @return false at the end of the segment
+     */
+    private boolean readRecord() throws IOException {
+        record.length = record.captured = 0;
+        if(!stale.isEmpty()) {
+            record.type = WireTraceRecorder.TYPE_CLOSE;
+            record.connection = stale.remove(stale.size() - 1);
+            record.address = addresses.remove(record.connection);
+            return true;
+        }
+        while(true) {
+            int type = in.read();
+            if(type <= WireTraceRecorder.TYPE_END) return false;
+            if(type != WireTraceRecorder.TYPE_OPEN) reopening = false;
+            record.type = type;
+            record.timeMicros += readVarlong();
+            record.connection = (int)readVarlong();
+            switch(type) {
+            case WireTraceRecorder.TYPE_OPEN:
+                record.address = readAddress();
+                if(reopening && record.address.equals(addresses.get(record.connection))) continue;
+                addresses.put(record.connection, record.address);
+                break;
+            case WireTraceRecorder.TYPE_CLOSE:
+                record.address = addresses.remove(record.connection);
+                break;
+            case WireTraceRecorder.TYPE_DATA_IN:
+            case WireTraceRecorder.TYPE_DATA_OUT:
+                record.address = addresses.get(record.connection);
+                int length = (int)readVarlong();
+                readData((int)readVarlong());
+                record.length = length;
+                break;
+            default:
+                throw new IOException("Unknown wire trace record type "+type);
+            }
+            return true;
+        }
+    }
+
+    private String readAddress() throws IOException {
+        int length = (int)readVarlong();
+        readData(length);
+        record.captured = 0;
+        return new String(record.buffer, 0, length, "US-ASCII");
+    }
+
+    private void readData(int length) throws IOException {
+        if(record.buffer.length < length) {
+            record.buffer = new byte[Math.max(length, record.buffer.length * 2)];
+        }
+        in.readFully(record.buffer, 0, length);
+        record.captured = length;
+    }
+
+    private long readVarlong() throws IOException {
+        long value = 0;
+        for(int shift = 0; shift < 70; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long)(b & 0x7F) << shift;
+            if((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Varint too long");
+    }
+
+    public void close() throws IOException {
+        if(in != null) {
+            in.close();
+            in = null;
+        }
+        nextSegment = segments.length;
+    }
+}
@@ -0,0 +1,33 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Records the bytes read from a socket into a wire trace.
+ */
+class TracingInputStream extends FilterInputStream {
+    private final WireTraceRecorder trace;
+    private final int id;
+
+    TracingInputStream(InputStream in, WireTraceRecorder trace, int id) {
+        super(in);
+        this.trace = trace;
+        this.id = id;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if(b != -1) trace.record(WireTraceRecorder.TYPE_DATA_IN, id, b);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if(n > 0) trace.record(WireTraceRecorder.TYPE_DATA_IN, id, b, off, n);
+        return n;
+    }
+}
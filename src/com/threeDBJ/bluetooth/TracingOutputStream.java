@@ -0,0 +1,34 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records the bytes written to a socket into a wire trace. Like
+ * CountingOutputStream it sits below any coalescing, so each record is
+ * one socket write.
+ */
+class TracingOutputStream extends FilterOutputStream {
+    private final WireTraceRecorder trace;
+    private final int id;
+
+    TracingOutputStream(OutputStream out, WireTraceRecorder trace, int id) {
+        super(out);
+        this.trace = trace;
+        this.id = id;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        trace.record(WireTraceRecorder.TYPE_DATA_OUT, id, b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // FilterOutputStream would write one byte at a time
+        out.write(b, off, len);
+        trace.record(WireTraceRecorder.TYPE_DATA_OUT, id, b, off, len);
+    }
+}
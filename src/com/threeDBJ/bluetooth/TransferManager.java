@@ -0,0 +1,438 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Resumable transfers between two services. Every message is a control
+ * frame whose payload starts with the varint transfer id:
+ *
+ *   OFFER  id, nonce           sender asks to start or resume
+ *   RESUME id, offset          receiver says where to start
+ *   DATA   id, offset, bytes   one chunk of data
+ *   ACK    id, offset          receiver checkpointed up to offset
+ *   END    id, length          sender has sent everything
+ *
+ * Offsets are varlongs. A chunk's offset doubles as its sequence number,
+ * so the receiver ignores chunks that don't continue where it is. The
+ * receiver keeps its checkpoint across connections, and the sender keeps
+ * a transfer until the final ack, offering it again whenever the device
+ * reconnects.
+ *
+ * The nonce is picked when the sender adds the transfer. A receiver that
+ * already completed a transfer with the id only answers with its length
+ * if the nonce is the same, ie. the final ack was lost, and otherwise
+ * starts the new transfer from 0. The last MAX_COMPLETED completed
+ * transfers are remembered. An offer without a nonce is resumed as the
+ * transfer with the id, complete or not.
+ *
+ * An incoming transfer belongs to the connection whose offer opened it,
+ * and only that connection writes to it or closes it, so a replaced
+ * connection closing late doesn't stop a transfer resumed on the new one.
+ * Lock the manager before a transfer when taking both.
+ */
+class TransferManager {
+    private static final String TAG = "BTAndroid";
+
+    static final int CMD_OFFER = 80;
+    static final int CMD_RESUME = 81;
+    static final int CMD_DATA = 82;
+    static final int CMD_ACK = 83;
+    static final int CMD_END = 84;
+
+    /* Bytes received between checkpoints */
+    static final int CHECKPOINT_SIZE = 64 * 1024;
+    /* How long an offer waits for the receiver to answer */
+    static final long RESUME_TIMEOUT_MS = 30 * 1000;
+    /* Room for the DATA header before each chunk */
+    private static final int DATA_HEADER = 5 + 10;
+    /* Chunks plus headers fit the encoder's buffer */
+    private static final int CHUNK = BluetoothClient.CHUNK_SIZE - DATA_HEADER - FrameCodec.MAX_HEADER_SIZE;
+    /* Completed incoming transfers remembered, to answer offers again after a lost final ack */
+    static final int MAX_COMPLETED = 64;
+
+    /**
+     * The connection a transfer runs over.
+     */
+    interface ControlChannel {
+        public String getAddress();
+        public void sendControl(int cmd, byte[] payload, int offset, int length) throws IOException;
+    }
+
+    interface Listener {
+        /**
+         * The receiver acked a transfer up to offset.
+         */
+        public void transferProgress(String address, int id, long offset, long length, boolean complete);
+    }
+
+    static class Outgoing {
+        final String address;
+        final int id;
+        final TransferSource source;
+        final long nonce;
+        // Guarded by this
+        ControlChannel channel;
+        long resume = -1;
+        long acked;
+        long length = -1;
+        boolean ended, cancelled;
+
+        Outgoing(String address, int id, TransferSource source, long nonce) {
+            this.address = address;
+            this.id = id;
+            this.source = source;
+            this.nonce = nonce;
+        }
+    }
+
+    private static class Incoming {
+        // Guarded by this
+        ControlChannel channel;
+        OutputStream out;
+        long offset, checkpoint;
+        // Nonce of the transfer's offer, -1 if it had none
+        long nonce = -1;
+        boolean complete;
+    }
+
+    private final HashMap<String, Outgoing> outgoing = new HashMap<String, Outgoing>();
+    private final HashMap<String, Incoming> incoming = new HashMap<String, Incoming>();
+    // Keys of completed incoming transfers, oldest first
+    private final ArrayDeque<String> completed = new ArrayDeque<String>();
+    private final Random random = new Random();
+    private final Listener listener;
+
+    TransferManager(Listener listener) {
+        this.listener = listener;
+    }
+
+    private static String key(String address, int id) {
+        return address + "/" + id;
+    }
+
+    /**
+     * Add a transfer, replacing any unfinished one with the same id.
+     */
+    synchronized Outgoing add(String address, int id, TransferSource source) {
+        Outgoing t = new Outgoing(address, id, source, random.nextLong() & Long.MAX_VALUE);
+        Outgoing old = outgoing.put(key(address, id), t);
+        if(old != null) cancel(old);
+        return t;
+    }
+
+    synchronized boolean cancel(String address, int id) {
+        Outgoing t = outgoing.remove(key(address, id));
+        if(t == null) return false;
+        cancel(t);
+        return true;
+    }
+
+    private static void cancel(Outgoing t) {
+        synchronized(t) {
+            t.cancelled = true;
+            t.notifyAll();
+        }
+    }
+
+    /**
+     * @return The offset the receiver has acked, or -1 for an unknown
+     *         transfer
+     */
+    synchronized long getAcked(String address, int id) {
+        Outgoing t = outgoing.get(key(address, id));
+        if(t == null) return -1;
+        synchronized(t) {
+            return t.acked;
+        }
+    }
+
+    /**
+     * @return The unfinished transfers to a device
+     */
+    synchronized List<Outgoing> pending(String address) {
+        List<Outgoing> list = new ArrayList<Outgoing>();
+        for(Outgoing t : outgoing.values()) {
+            if(t.address.equals(address)) list.add(t);
+        }
+        return list;
+    }
+
+    /**
+     * Run a transfer over a connection, from the offer to the end. Blocks
+     * the calling thread, and returns early if the connection is lost.
+     */
+    void upload(Outgoing t, ControlChannel channel) throws IOException {
+        long offset;
+        synchronized(t) {
+            if(t.cancelled) return;
+            t.channel = channel;
+            t.resume = -1;
+        }
+        send(channel, CMD_OFFER, t.id, t.nonce);
+        synchronized(t) {
+            long deadline = System.currentTimeMillis() + RESUME_TIMEOUT_MS;
+            try {
+                while(t.resume < 0 && !t.cancelled && t.channel == channel) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if(wait <= 0) throw new IOException("No answer to transfer "+t.id);
+                    t.wait(wait);
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if(t.cancelled || t.channel != channel) return;
+            offset = t.resume;
+        }
+        DebugLog.i(TAG, "Transfer {} starting at {}", t.id, offset);
+
+        byte[] buffer = new byte[DATA_HEADER + CHUNK];
+        InputStream in = t.source.open(offset);
+        try {
+            int len;
+            while((len = in.read(buffer, DATA_HEADER, CHUNK)) != -1) {
+                synchronized(t) {
+                    if(t.cancelled || t.channel != channel) return;
+                }
+                // Write the header right before the data
+                int header = FrameCodec.varintSize(t.id) + FrameCodec.varlongSize(offset);
+                int start = DATA_HEADER - header;
+                int pos = FrameCodec.putVarint(buffer, start, t.id);
+                FrameCodec.putVarlong(buffer, pos, offset);
+                channel.sendControl(CMD_DATA, buffer, start, header + len);
+                offset += len;
+            }
+        } finally {
+            in.close();
+        }
+        synchronized(t) {
+            t.length = offset;
+            t.ended = true;
+        }
+        send(channel, CMD_END, t.id, offset);
+    }
+
+    /**
+     * Handle a transfer control frame from a device.
+     */
+    void receivedControl(ControlChannel channel, Frame frame, BluetoothClient client) throws IOException {
+        int end = frame.offset + frame.length;
+        int pos = frame.offset;
+        int id = FrameCodec.readVarint(frame.buffer, pos, end);
+        pos += FrameCodec.varintSize(id);
+        long value = -1;
+        // Every command but an offer from an older peer has a value
+        if(pos < end) {
+            value = FrameCodec.readVarlong(frame.buffer, pos, end);
+            pos += FrameCodec.varlongSize(value);
+        }
+        String address = channel.getAddress();
+        switch(frame.cmd) {
+        case CMD_OFFER:
+            receivedOffer(channel, id, value, client);
+            break;
+        case CMD_DATA:
+            receivedData(channel, id, value, frame.buffer, pos, end - pos);
+            break;
+        case CMD_END:
+            receivedEnd(channel, id, value, client);
+            break;
+        case CMD_RESUME:
+        case CMD_ACK:
+            Outgoing t;
+            synchronized(this) {
+                t = outgoing.get(key(address, id));
+            }
+            if(t == null) return;
+            boolean complete;
+            long length;
+            synchronized(t) {
+                if(t.channel != channel) return;
+                if(frame.cmd == CMD_RESUME) {
+                    t.resume = value;
+                    t.notifyAll();
+                }
+                t.acked = value;
+                complete = t.ended && value == t.length;
+                length = t.length >= 0 ? t.length : t.source.length();
+            }
+            if(complete) {
+                synchronized(this) {
+                    if(outgoing.get(key(address, id)) == t) outgoing.remove(key(address, id));
+                }
+            }
+            listener.transferProgress(address, id, value, length, complete);
+            break;
+        }
+    }
+
+    private void receivedOffer(ControlChannel channel, int id, long nonce, BluetoothClient client) throws IOException {
+        if(!(client instanceof TransferReceiver)) {
+            DebugLog.w(TAG, "Ignoring transfer {}, client isn't a TransferReceiver", id);
+            return;
+        }
+        Incoming in = getOffered(channel.getAddress(), id, nonce);
+        long offset;
+        synchronized(in) {
+            if(!in.complete) {
+                closeIncoming(in);
+                in.out = ((TransferReceiver)client).openTransfer(channel.getAddress(), id, in.offset);
+                in.channel = channel;
+            }
+            offset = in.offset;
+        }
+        send(channel, CMD_RESUME, id, offset);
+    }
+
+    private void receivedData(ControlChannel channel, int id, long offset,
+                              byte[] buffer, int pos, int len) throws IOException {
+        Incoming in = getIncoming(channel.getAddress(), id);
+        long ack = -1;
+        synchronized(in) {
+            if(in.channel != channel || in.out == null || offset != in.offset) return;
+            in.out.write(buffer, pos, len);
+            in.offset += len;
+            if(in.offset - in.checkpoint >= CHECKPOINT_SIZE) {
+                in.out.flush();
+                in.checkpoint = in.offset;
+                ack = in.offset;
+            }
+        }
+        if(ack >= 0) send(channel, CMD_ACK, id, ack);
+    }
+
+    private void receivedEnd(ControlChannel channel, int id, long length, BluetoothClient client) throws IOException {
+        Incoming in = getIncoming(channel.getAddress(), id);
+        boolean completed;
+        synchronized(in) {
+            if(in.offset != length) return;
+            completed = !in.complete;
+            if(completed) {
+                // Another connection owns the transfer now
+                if(in.channel != channel) return;
+                OutputStream out = in.out;
+                in.out = null;
+                in.channel = null;
+                in.checkpoint = length;
+                in.complete = true;
+                if(out != null) out.close();
+            }
+        }
+        if(completed) completed(channel.getAddress(), id);
+        send(channel, CMD_ACK, id, length);
+        if(completed && client instanceof TransferReceiver) {
+            ((TransferReceiver)client).transferComplete(channel.getAddress(), id, length);
+        }
+    }
+
+    /**
+     * Get the incoming transfer an offer is for, starting a new one if the
+     * transfer with the id is complete and the offer's nonce is new.
+     */
+    private synchronized Incoming getOffered(String address, int id, long nonce) {
+        Incoming in = incoming.get(key(address, id));
+        if(in != null && nonce >= 0) {
+            synchronized(in) {
+                if(in.complete && nonce != in.nonce) {
+                    DebugLog.d(TAG, "Transfer {} is a new one, starting at 0", id);
+                    in = null;
+                }
+            }
+        }
+        if(in == null) {
+            in = new Incoming();
+            incoming.put(key(address, id), in);
+        }
+        if(nonce >= 0) {
+            synchronized(in) {
+                in.nonce = nonce;
+            }
+        }
+        return in;
+    }
+
+    /**
+     * Remember a completed transfer, forgetting the oldest beyond
+     * MAX_COMPLETED.
+     */
+    private synchronized void completed(String address, int id) {
+        completed.add(key(address, id));
+        while(completed.size() > MAX_COMPLETED) {
+            String key = completed.remove();
+            Incoming in = incoming.get(key);
+            if(in == null) continue;
+            // The id may have been reused by a transfer still running
+            synchronized(in) {
+                if(!in.complete) continue;
+            }
+            incoming.remove(key);
+        }
+    }
+
+    private synchronized Incoming getIncoming(String address, int id) {
+        String key = key(address, id);
+        Incoming in = incoming.get(key);
+        if(in == null) {
+            in = new Incoming();
+            incoming.put(key, in);
+        }
+        return in;
+    }
+
+    /**
+     * Checkpoint the incoming transfers of a closed connection, and stop
+     * its uploads. Transfers another connection to the device has taken
+     * over are left alone.
+     */
+    void connectionClosed(ControlChannel channel) {
+        List<Incoming> closing = new ArrayList<Incoming>();
+        List<Outgoing> stopping = new ArrayList<Outgoing>();
+        synchronized(this) {
+            closing.addAll(incoming.values());
+            stopping.addAll(outgoing.values());
+        }
+        for(Incoming in : closing) {
+            synchronized(in) {
+                if(in.channel == channel) {
+                    closeIncoming(in);
+                    in.channel = null;
+                }
+            }
+        }
+        for(Outgoing t : stopping) {
+            synchronized(t) {
+                if(t.channel == channel) {
+                    t.channel = null;
+                    t.notifyAll();
+                }
+            }
+        }
+    }
+
+    /* Flush and close, keeping what was flushed. Called holding in's lock. */
+    private static void closeIncoming(Incoming in) {
+        if(in.out == null) return;
+        try {
+            in.out.flush();
+            in.checkpoint = in.offset;
+        } catch(IOException e) {
+            in.offset = in.checkpoint;
+        }
+        try {in.out.close();} catch(IOException e) {}
+        in.out = null;
+    }
+
+    private void send(ControlChannel channel, int cmd, int id, long value) throws IOException {
+        byte[] payload = new byte[15];
+        int len = FrameCodec.putVarint(payload, 0, id);
+        if(value >= 0) len = FrameCodec.putVarlong(payload, len, value);
+        channel.sendControl(cmd, payload, 0, len);
+    }
+}
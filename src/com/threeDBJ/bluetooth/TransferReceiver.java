@@ -0,0 +1,33 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Optional interface for a BluetoothClient that accepts resumable transfers
+ * from its peers. A client implementing it also has incoming frames
+ * decoded, see FrameReceiver.
+ *
+ * The service checkpoints each transfer by flushing the stream, and only
+ * counts the flushed bytes as received. When a connection drops, the
+ * stream is flushed and closed, and the transfer is opened again at the
+ * offset it reached once the peer reconnects and resumes it.
+ */
+public interface TransferReceiver {
+
+    /**
+     * Open the destination of a transfer.
+     * @param address The device sending it
+     * @param id The transfer id the sender chose
+     * @param offset The number of bytes already received. The stream
+     *               should append after them, eg. a FileOutputStream
+     *               appending to a file truncated to that length.
+     */
+    public OutputStream openTransfer(String address, int id, long offset) throws IOException;
+
+    /**
+     * Called once every byte of a transfer has been written and the
+     * stream closed.
+     */
+    public void transferComplete(String address, int id, long length);
+}
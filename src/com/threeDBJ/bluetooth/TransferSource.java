@@ -0,0 +1,24 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The data of a resumable transfer. It may be opened several times, once
+ * per connection the transfer runs over, so it should be something that
+ * can be read again from any point, like a file.
+ *
+ * @see BluetoothService#startTransfer(String, int, TransferSource)
+ */
+public interface TransferSource {
+
+    /**
+     * Open the data, skipping the first offset bytes.
+     */
+    public InputStream open(long offset) throws IOException;
+
+    /**
+     * @return The length of the data, or -1 if it isn't known
+     */
+    public long length();
+}
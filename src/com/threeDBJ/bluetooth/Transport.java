@@ -0,0 +1,32 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * The socket layer BluetoothService runs on. The default implementation
+ * is RfcommTransport; MemoryTransport and TcpTransport let the service
+ * run on a plain JVM without a Bluetooth radio.
+ */
+public interface Transport {
+
+    /**
+     * Open a server socket that accepts incoming connections.
+     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     */
+    public TransportServerSocket listen(boolean secure) throws IOException;
+
+    /**
+     * Create an unconnected socket to a remote device. The socket is
+     * connected with TransportSocket#connect().
+     * @param address The address of the remote device, eg. a BDADDR
+     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     */
+    public TransportSocket createSocket(String address, boolean secure) throws IOException;
+
+    /**
+     * @param address The address of the remote device
+     * @return true if the address names a peer this transport knows
+     *         about, eg. a bonded device
+     */
+    public boolean hasPeer(String address);
+}
@@ -0,0 +1,19 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * A listening socket created by Transport#listen.
+ */
+public interface TransportServerSocket {
+
+    /**
+     * This is a blocking call and will only return on a successful
+     * connection or an exception. Closing the server socket from another
+     * thread aborts it.
+     * @return A connected socket
+     */
+    public TransportSocket accept() throws IOException;
+
+    public void close() throws IOException;
+}
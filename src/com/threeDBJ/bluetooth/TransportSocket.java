@@ -0,0 +1,35 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A stream socket created by a Transport, either by Transport#createSocket
+ * or accepted by a TransportServerSocket.
+ */
+public interface TransportSocket {
+
+    /**
+     * Connect to the remote device. This is a blocking call and will only
+     * return on a successful connection or an exception. Closing the socket
+     * from another thread aborts the attempt.
+     */
+    public void connect() throws IOException;
+
+    public InputStream getInputStream() throws IOException;
+
+    public OutputStream getOutputStream() throws IOException;
+
+    /**
+     * @return The address of the remote device, eg. a BDADDR
+     */
+    public String getRemoteAddress();
+
+    /**
+     * @return The friendly name of the remote device, or null
+     */
+    public String getRemoteName();
+
+    public void close() throws IOException;
+}
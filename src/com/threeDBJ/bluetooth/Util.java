@@ -98,12 +98,6 @@ public class Util {
     }
 
     public static String readLine(DataInputStream stream) throws IOException {
-	StringBuilder str = new StringBuilder();
-	while(true) {
-	    char c = (char)stream.read();
-	    if(c == '\n') break;
-	    str.append(c);
-	}
-	return str.toString();
+	return Streams.readLine(stream);
     }
 }
\ No newline at end of file
@@ -0,0 +1,327 @@
+package com.threeDBJ.bluetooth;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Records the bytes read from and written to connections into capture
+ * files, for finding out afterwards what crossed the link. Pass one to
+ * BluetoothService.setWireTrace() to record the connections it makes.
+ *
+ * The capture is split into segment files of a fixed size in a directory
+ * of their own, named wire-000001.trace and so on. When a segment is full
+ * the next one is started, and the oldest are deleted to keep at most
+ * maxSegments, counting those left by earlier runs. Segments are memory
+ * mapped, so recording is a copy into memory, doesn't allocate, and what
+ * was recorded survives the process being killed.
+ *
+ * A segment is a header followed by records:
+ *
+ *   | "BTWT" | version | flags | 2 bytes 0 | start time, ms since epoch (8 bytes) |
+ *
+ *   | type | varlong microseconds since the last record | varint connection | ... |
+ *
+ * An OPEN record follows with the connection's address, as a varint length
+ * and ASCII characters, and DATA_IN and DATA_OUT records with the length of
+ * the read or write, the varint length recorded and that many bytes. Only
+ * the start of a write too large for what's left of a new segment is
+ * recorded. A CLOSE record
+ * has nothing more, and a zero type ends the segment. A segment started
+ * when the one before filled has FLAG_CONTINUED set, and starts by opening
+ * the connections still open again, so it can be read on its own.
+ *
+ * Recording never fails the connection. If a segment can't be written
+ * the recorder logs it and stops.
+ *
+ * @see TraceReader
+ */
+public class WireTraceRecorder {
+    private static final String TAG = "BTAndroid";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 4;
+
+    public static final int MAGIC = 0x42545754;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    /* The segment carries on from the one before */
+    public static final int FLAG_CONTINUED = 0x01;
+
+    public static final int TYPE_END = 0;
+    public static final int TYPE_OPEN = 1;
+    public static final int TYPE_CLOSE = 2;
+    public static final int TYPE_DATA_IN = 3;
+    public static final int TYPE_DATA_OUT = 4;
+
+    private static final String PREFIX = "wire-";
+    private static final String SUFFIX = ".trace";
+    /* Most a record takes besides its data */
+    private static final int MAX_RECORD_OVERHEAD = 1 + 10 + 5 + 5 + 5;
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    private RandomAccessFile file;
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+    private long lastNanos;
+    /* Addresses of the open connections by id, null when closed */
+    private String[] connections = new String[4];
+    private int nextId;
+    private long records;
+    private boolean closed;
+
+    public WireTraceRecorder(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * @param dir The directory to keep segments in, created if needed
+     * @param segmentSize The size of each segment file in bytes
+     * @param maxSegments How many segments to keep, the capture taking up
+     *                    at most segmentSize * maxSegments bytes
+     */
+    public WireTraceRecorder(File dir, int segmentSize, int maxSegments) throws IOException {
+        if(segmentSize < HEADER_SIZE + MAX_RECORD_OVERHEAD + 256) {
+            throw new IllegalArgumentException("Segment size "+segmentSize+" is too small");
+        }
+        if(maxSegments < 1) throw new IllegalArgumentException("Must keep at least one segment");
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create trace directory "+dir);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        File[] existing = listSegments(dir);
+        if(existing.length > 0) {
+            segmentNumber = segmentNumber(existing[existing.length - 1]);
+        }
+        startSegment(false);
+    }
+
+    /**
+     * @return The segment files in dir, oldest first
+     */
+    public static File[] listSegments(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+                public boolean accept(File d, String name) {
+                    return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+                }
+            });
+        if(files == null) return new File[0];
+        // Numbers are zero padded, so names sort in order
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static int segmentNumber(File f) {
+        String name = f.getName();
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch(NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * @return The number of records written since the recorder was made
+     */
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    /**
+     * Start recording a connection.
+     * @return The id to pass to record() and closed()
+     */
+    synchronized int opened(String address) {
+        int id = nextId++;
+        if(id >= connections.length) {
+            connections = Arrays.copyOf(connections, connections.length * 2);
+        }
+        connections[id] = address;
+        try {
+            if(ensureSpace(MAX_RECORD_OVERHEAD + address.length())) {
+                writeOpen(id, address);
+            }
+        } catch(RuntimeException e) {
+            stop(e);
+        }
+        return id;
+    }
+
+    synchronized void closed(int id) {
+        if(id >= connections.length || connections[id] == null) return;
+        connections[id] = null;
+        try {
+            if(ensureSpace(MAX_RECORD_OVERHEAD)) {
+                startRecord(TYPE_CLOSE, id);
+            }
+        } catch(RuntimeException e) {
+            stop(e);
+        }
+    }
+
+    /**
+     * Record data read from or written to a connection.
+     * @param type TYPE_DATA_IN or TYPE_DATA_OUT
+     */
+    synchronized void record(int type, int id, byte[] b, int off, int len) {
+        try {
+            int captured = Math.min(len, segmentSize - HEADER_SIZE - MAX_RECORD_OVERHEAD);
+            if(!ensureSpace(MAX_RECORD_OVERHEAD + captured, MAX_RECORD_OVERHEAD)) return;
+            // A new segment starts with the open connections, leaving less room
+            captured = Math.min(captured, segment.remaining() - MAX_RECORD_OVERHEAD);
+            startRecord(type, id);
+            putVarlong(len);
+            putVarlong(captured);
+            segment.put(b, off, captured);
+        } catch(RuntimeException e) {
+            stop(e);
+        }
+    }
+
+    synchronized void record(int type, int id, int b) {
+        try {
+            if(!ensureSpace(MAX_RECORD_OVERHEAD + 1)) return;
+            startRecord(type, id);
+            segment.put((byte)1);
+            segment.put((byte)1);
+            segment.put((byte)b);
+        } catch(RuntimeException e) {
+            stop(e);
+        }
+    }
+
+    /**
+     * Finish the current segment and stop recording.
+     */
+    public synchronized void close() {
+        if(closed) return;
+        closed = true;
+        finishSegment();
+    }
+
+    private boolean ensureSpace(int size) {
+        return ensureSpace(size, size);
+    }
+
+    /**
+     * Make sure there's room for a record of up to size bytes, starting a
+     * new segment if needed.
+     * @param needed The least room the record can do with
+     * @return false if recording stopped, or a new segment has less than
+     *         needed left after the opens it starts with
+     */
+    private boolean ensureSpace(int size, int needed) {
+        if(closed) return false;
+        if(segment.remaining() >= size) return true;
+        finishSegment();
+        try {
+            startSegment(true);
+        } catch(IOException e) {
+            DebugLog.e(TAG, "Wire trace stopped, can't start a segment", e);
+            closed = true;
+            return false;
+        }
+        return segment.remaining() >= needed;
+    }
+
+    /* Stop recording after a failed write, keeping what's there */
+    private void stop(RuntimeException e) {
+        DebugLog.e(TAG, "Wire trace stopped", e);
+        closed = true;
+        if(segment == null) return;
+        try {
+            finishSegment();
+        } catch(RuntimeException e2) {
+            // Leave the segment as it is
+        }
+    }
+
+    private void startSegment(boolean continued) throws IOException {
+        segmentNumber += 1;
+        File f = new File(dir, String.format("%s%06d%s", PREFIX, segmentNumber, SUFFIX));
+        file = new RandomAccessFile(f, "rw");
+        file.setLength(0);
+        segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segment.order(ByteOrder.BIG_ENDIAN);
+        segment.putInt(MAGIC);
+        segment.put((byte)VERSION);
+        segment.put((byte)(continued ? FLAG_CONTINUED : 0));
+        segment.putShort((short)0);
+        segment.putLong(System.currentTimeMillis());
+        lastNanos = System.nanoTime();
+        for(int id = 0; id < nextId; id++) {
+            if(connections[id] == null) continue;
+            if(segment.remaining() < MAX_RECORD_OVERHEAD + connections[id].length()) break;
+            writeOpen(id, connections[id]);
+        }
+        deleteOldSegments();
+    }
+
+    private void finishSegment() {
+        int length = segment.position();
+        if(segment.hasRemaining()) segment.put((byte)TYPE_END);
+        segment = null;
+        try {
+            // The mapping stays until collected, but nothing past the end is touched
+            file.getChannel().truncate(length + 1);
+        } catch(IOException e) {
+            DebugLog.w(TAG, "Can't trim trace segment", e);
+        }
+        try {
+            file.close();
+        } catch(IOException e) {
+            // Nothing more to write
+        }
+        file = null;
+    }
+
+    private void deleteOldSegments() {
+        File[] files = listSegments(dir);
+        for(int i = 0; i < files.length - maxSegments; i++) {
+            if(!files[i].delete()) {
+                DebugLog.w(TAG, "Can't delete trace segment {}", files[i]);
+            }
+        }
+    }
+
+    private void startRecord(int type, int id) {
+        long now = System.nanoTime();
+        segment.put((byte)type);
+        putVarlong((now - lastNanos) / 1000);
+        // Only advance by whole microseconds, so rounding doesn't add up
+        lastNanos += (now - lastNanos) / 1000 * 1000;
+        putVarlong(id);
+        records += 1;
+    }
+
+    private void writeOpen(int id, String address) {
+        startRecord(TYPE_OPEN, id);
+        putVarlong(address.length());
+        for(int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            segment.put((byte)(c < 0x80 ? c : '?'));
+        }
+    }
+
+    private void putVarlong(long value) {
+        while((value & ~0x7FL) != 0) {
+            segment.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        segment.put((byte)value);
+    }
+}